@@ -3,6 +3,7 @@ package org.codelibs.elasticsearch.reindex.rest;
 import static org.elasticsearch.rest.RestStatus.OK;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
@@ -32,9 +33,25 @@ public class ReindexRestAction extends BaseRestHandler {
 
         restController.registerHandler(RestRequest.Method.GET,
                 "/_reindex", this);
+        restController.registerHandler(RestRequest.Method.GET,
+                "/_reindex/_stats", this);
         restController.registerHandler(RestRequest.Method.GET,
                 "/_reindex/{name}", this);
 
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/{type}/_reindex/{toindex}/_verify", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/_reindex/{toindex}/_verify", this);
+
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/{type}/_reindex/_export", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/{index}/_reindex/_export", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/_reindex/_import/{toindex}/{totype}", this);
+        restController.registerHandler(RestRequest.Method.POST,
+                "/_reindex/_import/{toindex}", this);
+
         restController.registerHandler(RestRequest.Method.POST,
                 "/{index}/{type}/_reindex/{toindex}/{totype}", this);
         restController.registerHandler(RestRequest.Method.POST,
@@ -56,36 +73,42 @@ public class ReindexRestAction extends BaseRestHandler {
         try {
             switch (request.method()) {
             case GET:
-                name = request.param("name");
-                params = new LinkedHashMap<String, Object>();
-                if (name == null) {
-                    params.put("names", reindexingService.getNames());
-                } else {
-                    params.put("name", name);
-                    params.put("found", reindexingService.exists(name));
-                }
-                sendResponse(request, channel, params);
+                handleGetRequest(request, channel);
                 break;
             case POST:
+                if (request.path().endsWith("/_verify")
+                        || request.paramAsBoolean("dry_run", false)) {
+                    handleResultRequest(request, channel);
+                    break;
+                }
                 final boolean waitForCompletion = request.paramAsBoolean(
                         "wait_for_completion", false);
-                name = reindexingService.execute(request,
-                        request.hasContent() ? request.content() : null,
-                        new ActionListener<Void>() {
-                            @Override
-                            public void onResponse(final Void response) {
-                                if (waitForCompletion) {
-                                    sendResponse(request, channel, null);
-                                }
-                            }
+                final ActionListener<Void> listener = new ActionListener<Void>() {
+                    @Override
+                    public void onResponse(final Void response) {
+                        if (waitForCompletion) {
+                            sendResponse(request, channel, null);
+                        }
+                    }
 
-                            @Override
-                            public void onFailure(final Throwable e) {
-                                if (waitForCompletion) {
-                                    sendErrorResponse(channel, e);
-                                }
-                            }
-                        });
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        if (waitForCompletion) {
+                            sendErrorResponse(channel, e);
+                        }
+                    }
+                };
+                if (request.path().endsWith("/_export")) {
+                    name = reindexingService.exportDump(request,
+                            request.hasContent() ? request.content() : null,
+                            listener);
+                } else if (request.param("index") == null) {
+                    name = reindexingService.importDump(request, listener);
+                } else {
+                    name = reindexingService.execute(request,
+                            request.hasContent() ? request.content() : null,
+                            listener);
+                }
                 if (!waitForCompletion) {
                     params = new LinkedHashMap<String, Object>();
                     params.put("name", name);
@@ -93,11 +116,7 @@ public class ReindexRestAction extends BaseRestHandler {
                 }
                 break;
             case DELETE:
-                name = request.param("name");
-                params = new LinkedHashMap<String, Object>();
-                params.put("name", name);
-                reindexingService.delete(name);
-                sendResponse(request, channel, params);
+                handleDeleteRequest(request, channel);
                 break;
             default:
                 sendErrorResponse(channel, new ReindexingException(
@@ -109,6 +128,115 @@ public class ReindexRestAction extends BaseRestHandler {
         }
     }
 
+    private void handleGetRequest(final RestRequest request,
+            final RestChannel channel) {
+        final String name = request.param("name");
+        if (request.path().endsWith("/_stats")) {
+            reindexingService.getStats(new ActionListener<Map<String, Object>>() {
+                @Override
+                public void onResponse(final Map<String, Object> response) {
+                    sendResponse(request, channel, response);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    sendErrorResponse(channel, e);
+                }
+            });
+        } else if (name == null) {
+            reindexingService.getNames(new ActionListener<List<String>>() {
+                @Override
+                public void onResponse(final List<String> response) {
+                    final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                    params.put("names", response);
+                    sendResponse(request, channel, params);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    sendErrorResponse(channel, e);
+                }
+            });
+        } else {
+            reindexingService.getStatus(name,
+                    new ActionListener<Map<String, Object>>() {
+                        @Override
+                        public void onResponse(
+                                final Map<String, Object> response) {
+                            final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                            params.put("name", name);
+                            params.put("found", response != null);
+                            if (response != null) {
+                                params.putAll(response);
+                            }
+                            sendResponse(request, channel, params);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            sendErrorResponse(channel, e);
+                        }
+                    });
+        }
+    }
+
+    private void handleDeleteRequest(final RestRequest request,
+            final RestChannel channel) {
+        final String name = request.param("name");
+        reindexingService.delete(name,
+                new ActionListener<Map<String, Object>>() {
+                    @Override
+                    public void onResponse(final Map<String, Object> response) {
+                        final Map<String, Object> params = new LinkedHashMap<String, Object>();
+                        params.put("name", name);
+                        params.put("node", response.get("node"));
+                        sendResponse(request, channel, params);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        sendErrorResponse(channel, e);
+                    }
+                });
+    }
+
+    /**
+     * Handles _verify and dry_run requests, which wait for their results by
+     * default.
+     */
+    private void handleResultRequest(final RestRequest request,
+            final RestChannel channel) {
+        final boolean waitForCompletion = request.paramAsBoolean(
+                "wait_for_completion", true);
+        final ActionListener<Map<String, Object>> listener = new ActionListener<Map<String, Object>>() {
+            @Override
+            public void onResponse(final Map<String, Object> response) {
+                if (waitForCompletion) {
+                    sendResponse(request, channel, response);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                if (waitForCompletion) {
+                    sendErrorResponse(channel, e);
+                }
+            }
+        };
+        final String name;
+        if (request.path().endsWith("/_verify")) {
+            name = reindexingService.verify(request, listener);
+        } else {
+            name = reindexingService.estimate(request,
+                    request.hasContent() ? request.content() : null, listener);
+        }
+        if (!waitForCompletion) {
+            final Map<String, Object> params = new LinkedHashMap<String, Object>();
+            params.put("name", name);
+            sendResponse(request, channel, params);
+        }
+    }
+
     private void sendResponse(final RestRequest request,
             final RestChannel channel, final Map<String, Object> params) {
         try {
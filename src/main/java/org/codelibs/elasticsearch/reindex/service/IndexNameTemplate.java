@@ -0,0 +1,119 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.format.DateTimeFormat;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+/**
+ * A name of a target index computed from fields of a source document, such
+ * as "events-{@timestamp:yyyy.MM}". A field is replaced with its value, or
+ * with its date value formatted by a pattern after ":". A date value is
+ * epoch milliseconds or an ISO 8601 string, and formatted in UTC.
+ */
+class IndexNameTemplate {
+
+    private static final DateTimeFormatter DATE_PARSER = ISODateTimeFormat
+            .dateOptionalTimeParser().withZoneUTC();
+
+    private final String template;
+
+    private final List<String> literals = new ArrayList<String>();
+
+    private final List<String> fields = new ArrayList<String>();
+
+    private final List<DateTimeFormatter> formatters = new ArrayList<DateTimeFormatter>();
+
+    IndexNameTemplate(final String template) {
+        this.template = template;
+        int pos = 0;
+        while (true) {
+            final int start = template.indexOf('{', pos);
+            if (start < 0) {
+                break;
+            }
+            final int end = template.indexOf('}', start);
+            if (end < 0) {
+                throw new ReindexingException("No closing brace in "
+                        + template);
+            }
+            literals.add(template.substring(pos, start));
+            final String placeholder = template.substring(start + 1, end);
+            final int colon = placeholder.indexOf(':');
+            final String field = colon < 0 ? placeholder : placeholder
+                    .substring(0, colon);
+            if (field.isEmpty()) {
+                throw new ReindexingException("No field in " + template);
+            }
+            fields.add(field);
+            formatters.add(colon < 0 ? null : DateTimeFormat.forPattern(
+                    placeholder.substring(colon + 1)).withZone(
+                    DateTimeZone.UTC));
+            pos = end + 1;
+        }
+        literals.add(template.substring(pos));
+    }
+
+    /**
+     * Returns true if name contains a field to be replaced.
+     */
+    static boolean isTemplate(final String name) {
+        return name != null && name.indexOf('{') >= 0;
+    }
+
+    /**
+     * Returns true if name is allowed as an index name, following the rules
+     * of MetaDataCreateIndexService: no characters invalid in a file name
+     * (such as ',', '*', '/' or a space), no '#', and no leading '_'.
+     */
+    static boolean isValidIndexName(final String name) {
+        return !name.isEmpty() && Strings.validFileName(name)
+                && name.indexOf('#') < 0 && name.charAt(0) != '_'
+                && !".".equals(name) && !"..".equals(name);
+    }
+
+    /**
+     * Returns an index name for a source, or null if a field is missing. A
+     * returned name may be invalid; see isValidIndexName. A date field which
+     * cannot be parsed throws ReindexingException.
+     */
+    public String resolve(final Map<String, Object> source) {
+        final StringBuilder buf = new StringBuilder(literals.get(0));
+        for (int i = 0; i < fields.size(); i++) {
+            final Object value = source == null ? null : XContentMapValues
+                    .extractValue(fields.get(i), source);
+            if (value == null) {
+                return null;
+            }
+            final DateTimeFormatter formatter = formatters.get(i);
+            if (formatter == null) {
+                buf.append(value);
+            } else if (value instanceof Number) {
+                buf.append(formatter.print(((Number) value).longValue()));
+            } else {
+                try {
+                    buf.append(formatter.print(DATE_PARSER
+                            .parseMillis(value.toString())));
+                } catch (final IllegalArgumentException e) {
+                    throw new ReindexingException("Invalid date in "
+                            + fields.get(i) + ": " + value, e);
+                }
+            }
+            buf.append(literals.get(i + 1));
+        }
+        return buf.toString().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
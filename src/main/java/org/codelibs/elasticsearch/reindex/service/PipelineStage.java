@@ -0,0 +1,63 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stage of a reindexing pipeline, which runs tasks on its executor and
+ * counts queued and running tasks.
+ */
+class PipelineStage {
+
+    private final Executor executor;
+
+    private final AtomicInteger queued = new AtomicInteger(0);
+
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    PipelineStage(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(final Runnable task) {
+        queued.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a task which completes asynchronously after leaving the
+     * executor, such as a bulk request waiting for its response.
+     */
+    public void begin() {
+        active.incrementAndGet();
+    }
+
+    public void end() {
+        active.decrementAndGet();
+    }
+
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("queue", queued.get());
+        status.put("active", active.get());
+        return status;
+    }
+}
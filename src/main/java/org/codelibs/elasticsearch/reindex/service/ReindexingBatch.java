@@ -0,0 +1,123 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the phases of a page processed by reindexing. A phase ends when the
+ * next one starts, and each phase is measured by System.nanoTime(), so that
+ * a change of the wall clock does not affect the times. The phases of a page
+ * run one after another, possibly on different threads.
+ */
+class ReindexingBatch {
+
+    enum Phase {
+        /** waiting for a scroll response */
+        FETCH,
+        /** waiting for a pipeline stage */
+        QUEUE,
+        /** building index requests from hits */
+        TRANSFORM,
+        /** looking up hashes of target documents in sync mode */
+        LOOKUP,
+        /** grouping or serializing bulk requests */
+        BUILD,
+        /** sending bulk requests and waiting for their responses */
+        SEND,
+        /**
+         * executing bulk requests on the target, as the longest "took" of
+         * the bulk requests reports
+         */
+        EXECUTE;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final long[] times = new long[Phase.values().length];
+
+    private final AtomicLong maxTook = new AtomicLong(0);
+
+    private final long startTime;
+
+    private long phaseStartTime;
+
+    private final int docs;
+
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    /**
+     * Creates a batch for a page fetched by a scroll request sent at
+     * fetchStartTime.
+     */
+    ReindexingBatch(final long fetchStartTime, final int docs) {
+        startTime = fetchStartTime;
+        phaseStartTime = fetchStartTime;
+        this.docs = docs;
+        end(Phase.FETCH);
+    }
+
+    /**
+     * Ends a phase which started at the end of the previous one.
+     */
+    public void end(final Phase phase) {
+        final long now = System.nanoTime();
+        times[phase.ordinal()] += now - phaseStartTime;
+        phaseStartTime = now;
+    }
+
+    /**
+     * Ends the send phase, and moves the time reported by the target from
+     * it to the execute phase. Bulk requests of a page may run concurrently,
+     * so the longest "took" is moved rather than the sum, which can exceed
+     * the wall-clock time of the send phase.
+     */
+    public void endSend() {
+        end(Phase.SEND);
+        final long execute = Math.min(maxTook.get() * 1000000,
+                times[Phase.SEND.ordinal()]);
+        times[Phase.SEND.ordinal()] -= execute;
+        times[Phase.EXECUTE.ordinal()] += execute;
+    }
+
+    /**
+     * Records "took" of a bulk response, which may be called concurrently.
+     */
+    public void addTook(final long millis) {
+        long current = maxTook.get();
+        while (millis > current && !maxTook.compareAndSet(current, millis)) {
+            current = maxTook.get();
+        }
+    }
+
+    public void addBytes(final long bytes) {
+        this.bytes.addAndGet(bytes);
+    }
+
+    public long getTime(final Phase phase) {
+        return times[phase.ordinal()];
+    }
+
+    public long getTotalTime() {
+        return phaseStartTime - startTime;
+    }
+
+    public Phase getSlowestPhase() {
+        Phase slowest = Phase.FETCH;
+        for (final Phase phase : Phase.values()) {
+            if (times[phase.ordinal()] > times[slowest.ordinal()]) {
+                slowest = phase;
+            }
+        }
+        return slowest;
+    }
+
+    public int getDocs() {
+        return docs;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+}
@@ -0,0 +1,426 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Estimates the time and size of reindexing without running it. A page is
+ * scanned from each shard of the source index, the sampled documents are
+ * sent to a temporary index in a trial bulk request, and the measured times
+ * are extrapolated for combinations of size and partitions.
+ */
+class ReindexingEstimator implements ReindexingTask {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingEstimator.class);
+
+    private final String name;
+
+    private final Client client;
+
+    private final String fromIndex;
+
+    private final String toIndex;
+
+    private final String toType;
+
+    private final String trialIndex;
+
+    private final List<SearchRequestBuilder> shardRequestBuilders;
+
+    private final ReindexingMetadata metadata;
+
+    private final ReindexingScroll scroll;
+
+    private final ReindexingSender sender;
+
+    private final int[] sizes;
+
+    private final int[] partitions;
+
+    private final ActionListener<Map<String, Object>> listener;
+
+    private final List<IndexRequest> samples = new ArrayList<IndexRequest>();
+
+    private volatile ReindexingScroll shardScroll;
+
+    private volatile boolean interrupted = false;
+
+    private volatile String phase = "pending";
+
+    private long totalDocs = 0;
+
+    private long sampledBytes = 0;
+
+    private long storeBytes = -1;
+
+    private long storeDocs = 0;
+
+    private long scanRequestTime = 0;
+
+    private long scanPageTime = 0;
+
+    private long singleBulkTime = 0;
+
+    private long sampleBulkTime = 0;
+
+    ReindexingEstimator(final String name, final Client client,
+            final String fromIndex, final String toIndex, final Params params,
+            final List<SearchRequestBuilder> shardRequestBuilders,
+            final ReindexingMetadata metadata, final ReindexingScroll scroll, final ReindexingSender sender,
+            final ActionListener<Map<String, Object>> listener) {
+        this.name = name;
+        this.client = client;
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+        this.toType = params.param("totype");
+        this.shardRequestBuilders = shardRequestBuilders;
+        this.metadata = metadata;
+        this.scroll = scroll;
+        this.sender = sender;
+        this.listener = listener;
+        trialIndex = ".reindex-dry-run-" + name;
+        sizes = parseValues(
+                params.param("estimate_sizes", "100,500,1000,5000"),
+                "estimate_sizes");
+        partitions = parseValues(
+                params.param("estimate_partitions", "1,2,4"),
+                "estimate_partitions");
+    }
+
+    private static int[] parseValues(final String value, final String key) {
+        final String[] values = value.split(",");
+        final int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+            if (result[i] < 1) {
+                throw new ReindexingException(key
+                        + " should be positive numbers: " + value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start() {
+        phase = "stats";
+        client.admin().indices().prepareStats(fromIndex).setDocs(true)
+                .setStore(true)
+                .execute(new ActionListener<IndicesStatsResponse>() {
+                    @Override
+                    public void onResponse(final IndicesStatsResponse response) {
+                        final CommonStats primaries = response.getPrimaries();
+                        if (primaries.getStore() != null
+                                && primaries.getDocs() != null) {
+                            storeBytes = primaries.getStore().getSizeInBytes();
+                            storeDocs = primaries.getDocs().getCount();
+                        }
+                        phase = "scan";
+                        scanShard(0);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        ReindexingEstimator.this.onFailure(e);
+                    }
+                });
+    }
+
+    /**
+     * Scans a page from each shard one after another, so that the pages do
+     * not compete with each other.
+     */
+    private void scanShard(final int shard) {
+        if (interrupted) {
+            onFailure(new ReindexingException("Interrupted."));
+            return;
+        }
+        if (shard >= shardRequestBuilders.size()) {
+            sendTrialBulks();
+            return;
+        }
+        final ReindexingScroll currentScroll = scroll.newScroll();
+        shardScroll = currentScroll;
+        final long startTime = System.nanoTime();
+        shardRequestBuilders.get(shard).execute(
+                new ActionListener<SearchResponse>() {
+                    private long pageStartTime = -1;
+
+                    @Override
+                    public void onResponse(final SearchResponse response) {
+                        currentScroll.onResponse(response);
+                        if (pageStartTime < 0) {
+                            scanRequestTime += System.nanoTime() - startTime;
+                            totalDocs += response.getHits().getTotalHits();
+                            pageStartTime = System.nanoTime();
+                            currentScroll.next(this);
+                            return;
+                        }
+                        scanPageTime += System.nanoTime() - pageStartTime;
+                        currentScroll.clear();
+                        addSamples(response.getHits().getHits());
+                        scanShard(shard + 1);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        currentScroll.clear();
+                        ReindexingEstimator.this.onFailure(e);
+                    }
+                });
+    }
+
+    private void addSamples(final SearchHit[] hits) {
+        for (final SearchHit hit : hits) {
+            if (hit.sourceRef() == null) {
+                continue;
+            }
+            final IndexRequest request = new IndexRequest(trialIndex,
+                    toType != null ? toType : hit.getType(), hit.getId());
+            if (!metadata.apply(hit, request)) {
+                continue;
+            }
+            request.source(hit.sourceRef(), false);
+            samples.add(request);
+            sampledBytes += hit.sourceRef().length();
+        }
+    }
+
+    private void sendTrialBulks() {
+        if (samples.isEmpty()) {
+            complete();
+            return;
+        }
+        phase = "bulk";
+        new TrialBulkListener().sendNext();
+    }
+
+    private void sendTrialBulk(final List<IndexRequest> requests,
+            final ActionListener<Void> listener) {
+        try {
+            // a request is not reused because its version is updated
+            final List<IndexRequest> copies = new ArrayList<IndexRequest>(
+                    requests.size());
+            for (final IndexRequest request : requests) {
+                final IndexRequest copy = new IndexRequest(request.index(),
+                        request.type(), request.id())
+                        .parent(request.parent())
+                        .routing(request.routing())
+                        .timestamp(request.timestamp())
+                        .source(request.source(), false);
+                if (request.ttl() > 0) {
+                    copy.ttl(request.ttl());
+                }
+                copies.add(copy);
+            }
+            sender.send(copies, listener);
+        } catch (final Exception e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private void deleteTrialIndex() {
+        final String url = sender.getUrl();
+        if (url != null) {
+            try (CurlResponse response = Curl.delete(url + trialIndex)
+                    .execute()) {
+                if (response.getHttpStatusCode() != 200) {
+                    logger.warn("Failed to delete " + url + trialIndex + ": "
+                            + response.getContentAsString());
+                }
+            } catch (final Exception e) {
+                logger.warn("Failed to delete " + url + trialIndex + ".", e);
+            }
+            return;
+        }
+        client.admin().indices().prepareDelete(trialIndex)
+                .execute(new ActionListener<DeleteIndexResponse>() {
+                    @Override
+                    public void onResponse(final DeleteIndexResponse response) {
+                        // nothing
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        logger.warn("Failed to delete " + trialIndex + ".", e);
+                    }
+                });
+    }
+
+    private void complete() {
+        phase = "completed";
+        final Map<String, Object> result = buildResult();
+        if (logger.isInfoEnabled()) {
+            logger.info("Estimated reindexing from " + fromIndex + " to "
+                    + toIndex + ": " + result);
+        }
+        listener.onResponse(result);
+    }
+
+    private Map<String, Object> buildResult() {
+        final int shards = shardRequestBuilders.size();
+        final int sampledDocs = samples.size();
+        final double avgDocBytes = sampledDocs > 0 ? (double) sampledBytes
+                / sampledDocs : 0;
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("index", fromIndex);
+        result.put("toindex", toIndex);
+        result.put("dry_run", true);
+        result.put("shards", shards);
+        result.put("total_docs", totalDocs);
+        result.put("sampled_docs", sampledDocs);
+        result.put("avg_doc_bytes", Math.round(avgDocBytes));
+        result.put("total_bytes", Math.round(avgDocBytes * totalDocs));
+        if (storeBytes >= 0 && storeDocs > 0) {
+            result.put("store_bytes", Math.round((double) storeBytes
+                    / storeDocs * totalDocs));
+        }
+
+        // times in milliseconds
+        final double scanOverhead = toMillis(scanRequestTime) / shards;
+        final double scanPerDoc = sampledDocs > 0 ? Math.max(0,
+                toMillis(scanPageTime) - scanOverhead * shards)
+                / sampledDocs : 0;
+        final double bulkOverhead = toMillis(singleBulkTime);
+        final double bulkPerDoc = sampledDocs > 1 ? Math.max(0,
+                toMillis(sampleBulkTime) - bulkOverhead)
+                / (sampledDocs - 1) : 0;
+
+        final Map<String, Object> scan = new LinkedHashMap<String, Object>();
+        scan.put("request_millis", Math.round(scanOverhead));
+        scan.put("page_millis", Math.round(toMillis(scanPageTime) / shards));
+        result.put("scan", scan);
+        final Map<String, Object> bulk = new LinkedHashMap<String, Object>();
+        bulk.put("index", sender.getUrl() != null ? sender.getUrl()
+                + trialIndex : trialIndex);
+        bulk.put("docs", sampledDocs);
+        bulk.put("bytes", sampledBytes);
+        bulk.put("single_doc_millis", Math.round(bulkOverhead));
+        bulk.put("millis", Math.round(toMillis(sampleBulkTime)));
+        result.put("bulk", bulk);
+
+        final List<Map<String, Object>> estimates = new ArrayList<Map<String, Object>>();
+        for (final int size : sizes) {
+            // a scan page contains size documents from each shard
+            final double pageDocs = Math.max(1,
+                    Math.min((double) size * shards, totalDocs));
+            final double pageMillis = scanOverhead + size * scanPerDoc
+                    + bulkOverhead + pageDocs * bulkPerDoc;
+            for (final int partition : partitions) {
+                final double docsPerSecond = pageMillis > 0 ? partition
+                        * pageDocs * 1000 / pageMillis : 0;
+                final Map<String, Object> estimate = new LinkedHashMap<String, Object>();
+                estimate.put("size", size);
+                estimate.put("partitions", partition);
+                estimate.put("docs_per_second", Math.round(docsPerSecond));
+                estimate.put("duration_seconds",
+                        docsPerSecond > 0 ? Math.round(totalDocs
+                                / docsPerSecond) : 0);
+                estimates.add(estimate);
+            }
+        }
+        result.put("estimates", estimates);
+        return result;
+    }
+
+    /**
+     * Sends a bulk request with one document, and then one with all sampled
+     * documents, to separate the overhead of a request from the time per
+     * document. The first request creates the temporary index, and is not
+     * measured.
+     */
+    private class TrialBulkListener implements ActionListener<Void> {
+        private int step = 0;
+
+        private long startTime;
+
+        void sendNext() {
+            if (interrupted) {
+                onFailure(new ReindexingException("Interrupted."));
+                return;
+            }
+            startTime = System.nanoTime();
+            sendTrialBulk(step < 2 ? samples.subList(0, 1) : samples, this);
+        }
+
+        @Override
+        public void onResponse(final Void response) {
+            final long elapsed = System.nanoTime() - startTime;
+            if (step == 1) {
+                singleBulkTime = elapsed;
+            } else if (step == 2) {
+                sampleBulkTime = elapsed;
+                deleteTrialIndex();
+                complete();
+                return;
+            }
+            step++;
+            sendNext();
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            deleteTrialIndex();
+            ReindexingEstimator.this.onFailure(e);
+        }
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private void onFailure(final Throwable e) {
+        if (interrupted) {
+            phase = "interrupted";
+        } else {
+            logger.error("Failed to estimate reindexing from " + fromIndex
+                    + ".", e);
+            phase = "failed";
+        }
+        listener.onFailure(e);
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted = true;
+        final ReindexingScroll currentScroll = shardScroll;
+        if (currentScroll != null) {
+            currentScroll.clear();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("index", fromIndex);
+        status.put("toindex", toIndex);
+        status.put("dry_run", true);
+        status.put("phase", phase);
+        status.put("sampled_docs", samples.size());
+        return status;
+    }
+}
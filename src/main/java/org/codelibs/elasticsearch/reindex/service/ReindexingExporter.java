@@ -0,0 +1,321 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Writes documents scanned from an index into gzipped NDJSON files in bulk
+ * format. A file is rotated every segment_size documents, and the next page
+ * is fetched while the current page is written.
+ */
+class ReindexingExporter implements ReindexingTask,
+        ActionListener<SearchResponse> {
+
+    static final String FILE_SUFFIX = ".ndjson.gz";
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingExporter.class);
+
+    private static final int MAX_PAGES_IN_FLIGHT = 2;
+
+    private final AtomicBoolean initialized = new AtomicBoolean(false);
+
+    private final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final AtomicLong processed = new AtomicLong(0);
+
+    private final String name;
+
+    private final String fromIndex;
+
+    private final Path dir;
+
+    private final String prefix;
+
+    private final int segmentSize;
+
+    private final ReindexingScroll scroll;
+
+    private final ReindexingMetadata metadata;
+
+    private final SearchRequestBuilder searchRequestBuilder;
+
+    private final ActionListener<Void> listener;
+
+    private final List<String> files = new ArrayList<String>();
+
+    private final Object writeLock = new Object();
+
+    private volatile long total = -1;
+
+    private volatile String state = "pending";
+
+    private int pagesInFlight = 0;
+
+    private boolean fetching = false;
+
+    private boolean scrollCompleted = false;
+
+    private OutputStream out;
+
+    private Path segmentFile;
+
+    private int segmentDocs = 0;
+
+    ReindexingExporter(final String name, final String fromIndex, final Path dir, final String prefix,
+            final int segmentSize, final ReindexingScroll scroll,
+            final ReindexingMetadata metadata,
+            final SearchRequestBuilder searchRequestBuilder,
+            final ActionListener<Void> listener) {
+        if (segmentSize < 1) {
+            throw new ReindexingException("segment_size should be positive.");
+        }
+        this.name = name;
+        this.fromIndex = fromIndex;
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.scroll = scroll;
+        this.metadata = metadata;
+        this.searchRequestBuilder = searchRequestBuilder;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start() {
+        state = "running";
+        try {
+            Files.createDirectories(dir);
+        } catch (final IOException e) {
+            onFailure(e);
+            return;
+        }
+        synchronized (this) {
+            fetching = true;
+        }
+        searchRequestBuilder.execute(this);
+    }
+
+    @Override
+    public void onResponse(final SearchResponse response) {
+        scroll.onResponse(response);
+        if (finished.get()) {
+            return;
+        }
+        if (interrupted.get()) {
+            state = "interrupted";
+            finish(new ReindexingException("Interrupted."));
+            return;
+        }
+
+        if (initialized.compareAndSet(false, true)) {
+            total = response.getHits().getTotalHits();
+            synchronized (this) {
+                fetching = false;
+            }
+            fetchNextPage();
+            return;
+        }
+
+        final SearchHit[] hits = response.getHits().getHits();
+        synchronized (this) {
+            fetching = false;
+            if (hits.length == 0) {
+                scrollCompleted = true;
+            } else {
+                pagesInFlight++;
+            }
+        }
+        if (hits.length == 0) {
+            scroll.clear();
+            finishIfCompleted();
+            return;
+        }
+
+        // the next page is fetched while this page is written
+        fetchNextPage();
+        try {
+            write(hits);
+        } catch (final Exception e) {
+            onFailure(e);
+            return;
+        }
+        processed.addAndGet(hits.length);
+        synchronized (this) {
+            pagesInFlight--;
+        }
+        fetchNextPage();
+        finishIfCompleted();
+    }
+
+    private void fetchNextPage() {
+        synchronized (this) {
+            if (fetching || scrollCompleted || finished.get()
+                    || pagesInFlight >= MAX_PAGES_IN_FLIGHT) {
+                return;
+            }
+            fetching = true;
+        }
+        scroll.next(this);
+    }
+
+    private void write(final SearchHit[] hits) throws IOException {
+        synchronized (writeLock) {
+            if (finished.get()) {
+                return;
+            }
+            for (final SearchHit hit : hits) {
+                if (hit.sourceRef() == null) {
+                    continue;
+                }
+                if (out == null || segmentDocs >= segmentSize) {
+                    nextSegment();
+                }
+                final IndexRequest request = new IndexRequest().type(
+                        hit.getType()).id(hit.getId());
+                if (!metadata.apply(hit, request)) {
+                    continue;
+                }
+                request.source(hit.sourceRef(), false);
+                // a dump is read line by line, so a pretty-printed source
+                // is written on one line
+                ReindexingSender.writeIndexAction(out, request,
+                        XContentType.JSON, false);
+                segmentDocs++;
+            }
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+        final String fileName = String.format(Locale.ROOT, "%s-%05d%s",
+                prefix, files.size(), FILE_SUFFIX);
+        segmentFile = dir.resolve(fileName);
+        if (Files.exists(segmentFile)) {
+            throw new ReindexingException(segmentFile + " already exists.");
+        }
+        // written to a temporary file, and renamed when it's completed
+        final FileChannel channel = FileChannel.open(
+                tempFile(segmentFile), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        out = new BufferedOutputStream(new GZIPOutputStream(
+                Channels.newOutputStream(channel), 65536), 65536);
+        segmentDocs = 0;
+        files.add(fileName);
+    }
+
+    private void closeSegment() throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        out = null;
+        Files.move(tempFile(segmentFile), segmentFile,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path tempFile(final Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    private void finishIfCompleted() {
+        synchronized (this) {
+            if (!scrollCompleted || pagesInFlight > 0) {
+                return;
+            }
+        }
+        try {
+            synchronized (writeLock) {
+                closeSegment();
+            }
+        } catch (final IOException e) {
+            onFailure(e);
+            return;
+        }
+        if (finished.compareAndSet(false, true)) {
+            state = "completed";
+            listener.onResponse(null);
+        }
+    }
+
+    private void finish(final Throwable t) {
+        if (finished.compareAndSet(false, true)) {
+            synchronized (writeLock) {
+                if (out != null) {
+                    try {
+                        out.close();
+                        Files.deleteIfExists(tempFile(segmentFile));
+                    } catch (final IOException e) {
+                        logger.warn("Failed to close " + segmentFile + ".", e);
+                    }
+                    out = null;
+                }
+            }
+            listener.onFailure(t);
+        }
+    }
+
+    @Override
+    public void onFailure(final Throwable e) {
+        if (finished.get()) {
+            return;
+        }
+        logger.error("Failed to export " + fromIndex + ".", e);
+        state = "failed";
+        interrupt();
+        finish(e);
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted.set(true);
+        scroll.clear();
+    }
+
+    @Override
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("index", fromIndex);
+        status.put("path", dir.toString());
+        status.put("state", state);
+        status.put("total", total);
+        status.put("processed", processed.get());
+        status.put("scroll", scroll.getStatus());
+        synchronized (writeLock) {
+            status.put("files", new ArrayList<String>(files));
+        }
+        return status;
+    }
+}
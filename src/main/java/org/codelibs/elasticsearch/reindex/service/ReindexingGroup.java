@@ -0,0 +1,159 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.action.ActionListener;
+
+/**
+ * Runs reindexing tasks as one job, keeping at most maxConcurrent tasks
+ * running at the same time.
+ */
+class ReindexingGroup implements ReindexingTask, ActionListener<Void> {
+
+    private final List<ReindexingTask> tasks = new ArrayList<ReindexingTask>();
+
+    private final String name;
+
+    private final int maxConcurrent;
+
+    private final ActionListener<Void> listener;
+
+    private int nextTask = 0;
+
+    private int runningTasks = 0;
+
+    private int completedTasks = 0;
+
+    private boolean interrupted = false;
+
+    private boolean finished = false;
+
+    ReindexingGroup(final String name, final int maxConcurrent,
+            final ActionListener<Void> listener) {
+        if (maxConcurrent < 1) {
+            throw new ReindexingException(
+                    "The number of concurrent tasks should be positive: "
+                            + maxConcurrent);
+        }
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.listener = listener;
+    }
+
+    public synchronized void add(final ReindexingTask task) {
+        tasks.add(task);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (!tasks.isEmpty()) {
+                startTasks();
+                return;
+            }
+            finished = true;
+        }
+        listener.onResponse(null);
+    }
+
+    private void startTasks() {
+        while (!interrupted && runningTasks < maxConcurrent
+                && nextTask < tasks.size()) {
+            final ReindexingTask task = tasks.get(nextTask++);
+            runningTasks++;
+            task.start();
+        }
+    }
+
+    @Override
+    public void onResponse(final Void response) {
+        synchronized (this) {
+            runningTasks--;
+            completedTasks++;
+            if (finished) {
+                return;
+            }
+            if (completedTasks < tasks.size()) {
+                startTasks();
+                if (runningTasks > 0 || !interrupted) {
+                    return;
+                }
+            }
+            finished = true;
+        }
+        if (interrupted) {
+            listener.onFailure(new ReindexingException("Interrupted."));
+        } else {
+            listener.onResponse(null);
+        }
+    }
+
+    @Override
+    public void onFailure(final Throwable e) {
+        synchronized (this) {
+            runningTasks--;
+            if (finished) {
+                return;
+            }
+            finished = true;
+            interruptTasks();
+        }
+        listener.onFailure(e);
+    }
+
+    @Override
+    public void interrupt() {
+        synchronized (this) {
+            interruptTasks();
+            if (finished || runningTasks > 0) {
+                return;
+            }
+            finished = true;
+        }
+        listener.onFailure(new ReindexingException("Interrupted."));
+    }
+
+    private void interruptTasks() {
+        interrupted = true;
+        for (int i = 0; i < nextTask; i++) {
+            tasks.get(i).interrupt();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatus() {
+        long total = 0;
+        long processed = 0;
+        final List<Map<String, Object>> taskStatusList = new ArrayList<Map<String, Object>>(
+                tasks.size());
+        for (final ReindexingTask task : tasks) {
+            final Map<String, Object> taskStatus = task.getStatus();
+            final Object taskTotal = taskStatus.get("total");
+            if (taskTotal instanceof Number
+                    && ((Number) taskTotal).longValue() > 0) {
+                total += ((Number) taskTotal).longValue();
+            }
+            final Object taskProcessed = taskStatus.get("processed");
+            if (taskProcessed instanceof Number) {
+                processed += ((Number) taskProcessed).longValue();
+            }
+            taskStatusList.add(taskStatus);
+        }
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("total", total);
+        status.put("processed", processed);
+        status.put("running_tasks", runningTasks);
+        status.put("completed_tasks", completedTasks);
+        status.put("tasks", taskStatusList);
+        return status;
+    }
+}
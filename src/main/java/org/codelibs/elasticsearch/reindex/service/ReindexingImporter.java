@@ -0,0 +1,323 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/**
+ * Reads files written by {@link ReindexingExporter} with parallel readers
+ * and sends the documents as bulk requests. A completed file is marked by
+ * a file with ".done" suffix, and skipped when the import is run again.
+ */
+class ReindexingImporter implements ReindexingTask {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingImporter.class);
+
+    private final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final AtomicLong processed = new AtomicLong(0);
+
+    private final AtomicInteger completedFiles = new AtomicInteger(0);
+
+    private final AtomicInteger skippedFiles = new AtomicInteger(0);
+
+    private final AtomicInteger remainingFiles;
+
+    private final String name;
+
+    private final Path dir;
+
+    private final List<Path> files;
+
+    private final String toIndex;
+
+    private final String toType;
+
+    private final int size;
+
+    private final boolean resume;
+
+    private final ReindexingSender sender;
+
+    private final ExecutorService executor;
+
+    private final ActionListener<Void> listener;
+
+    private volatile String state = "pending";
+
+    ReindexingImporter(final String name, final Path dir,
+            final String toIndex, final String toType, final int size,
+            final boolean resume, final ReindexingSender sender,
+            final ExecutorService executor, final ActionListener<Void> listener) {
+        this.name = name;
+        this.dir = dir;
+        this.toIndex = toIndex;
+        this.toType = toType;
+        this.size = size;
+        this.resume = resume;
+        this.sender = sender;
+        this.executor = executor;
+        this.listener = listener;
+        files = listFiles(dir);
+        if (files.isEmpty()) {
+            executor.shutdown();
+            throw new ReindexingException("No dump file in " + dir + ".");
+        }
+        remainingFiles = new AtomicInteger(files.size());
+    }
+
+    private static List<Path> listFiles(final Path dir) {
+        final List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*"
+                + ReindexingExporter.FILE_SUFFIX)) {
+            for (final Path file : stream) {
+                files.add(file);
+            }
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to read " + dir + ".", e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start() {
+        state = "running";
+        for (final Path file : files) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.get()) {
+                        return;
+                    }
+                    try {
+                        final Path doneFile = getDoneFile(file);
+                        if (resume && Files.exists(doneFile)) {
+                            skippedFiles.incrementAndGet();
+                        } else {
+                            importFile(file);
+                            Files.deleteIfExists(doneFile);
+                            Files.createFile(doneFile);
+                            completedFiles.incrementAndGet();
+                        }
+                    } catch (final Exception e) {
+                        onFailure(e);
+                        return;
+                    }
+                    if (remainingFiles.decrementAndGet() == 0
+                            && finished.compareAndSet(false, true)) {
+                        state = "completed";
+                        executor.shutdown();
+                        listener.onResponse(null);
+                    }
+                }
+            });
+        }
+    }
+
+    private Path getDoneFile(final Path file) {
+        return file.resolveSibling(file.getFileName() + "." + toIndex
+                + ".done");
+    }
+
+    private void importFile(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ);
+                InputStream in = new BufferedInputStream(new GZIPInputStream(
+                        new MappedInputStream(channel), 65536), 65536)) {
+            List<IndexRequest> requests = new ArrayList<IndexRequest>(size);
+            final BytesStreamOutput buf = new BytesStreamOutput();
+            while (readLine(in, buf)) {
+                final IndexRequest request = parseAction(buf);
+                if (!readLine(in, buf)) {
+                    throw new ReindexingException("No source for "
+                            + request.id() + " in " + file + ".");
+                }
+                request.source(new BytesArray(buf.bytes().toBytes()), false);
+                requests.add(request);
+                if (requests.size() >= size) {
+                    send(requests);
+                    requests = new ArrayList<IndexRequest>(size);
+                }
+            }
+            if (!requests.isEmpty()) {
+                send(requests);
+            }
+        }
+    }
+
+    private void send(final List<IndexRequest> requests) throws IOException {
+        if (interrupted.get()) {
+            throw new ReindexingException("Interrupted.");
+        }
+        final PlainActionFuture<Void> future = PlainActionFuture.newFuture();
+        sender.send(requests, future);
+        future.actionGet();
+        processed.addAndGet(requests.size());
+    }
+
+    private IndexRequest parseAction(final BytesStreamOutput buf)
+            throws IOException {
+        try (XContentParser parser = JsonXContent.jsonXContent
+                .createParser(buf.bytes())) {
+            final Object action = parser.map().get("index");
+            if (!(action instanceof Map)) {
+                throw new ReindexingException("Invalid action: "
+                        + buf.bytes().toUtf8());
+            }
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> meta = (Map<String, Object>) action;
+            final IndexRequest request = new IndexRequest(toIndex,
+                    toType != null ? toType : (String) meta.get("_type"),
+                    (String) meta.get("_id"));
+            if (meta.get("_parent") != null) {
+                request.parent(meta.get("_parent").toString());
+            }
+            if (meta.get("_routing") != null) {
+                request.routing(meta.get("_routing").toString());
+            }
+            if (meta.get("_timestamp") != null) {
+                request.timestamp(meta.get("_timestamp").toString());
+            }
+            // a ttl which has run out while dumped is left to the default
+            if (meta.get("_ttl") instanceof Number
+                    && ((Number) meta.get("_ttl")).longValue() > 0) {
+                request.ttl(((Number) meta.get("_ttl")).longValue());
+            }
+            return request;
+        }
+    }
+
+    private static boolean readLine(final InputStream in,
+            final BytesStreamOutput buf) throws IOException {
+        buf.reset();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+            buf.write(b);
+        }
+        return buf.size() > 0;
+    }
+
+    private void onFailure(final Throwable e) {
+        if (finished.compareAndSet(false, true)) {
+            if (interrupted.get()) {
+                state = "interrupted";
+            } else {
+                logger.error("Failed to import " + dir + ".", e);
+                state = "failed";
+            }
+            executor.shutdownNow();
+            listener.onFailure(e);
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted.set(true);
+    }
+
+    @Override
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("path", dir.toString());
+        status.put("toindex", toIndex);
+        status.put("state", state);
+        status.put("files", files.size());
+        status.put("completed_files", completedFiles.get());
+        status.put("skipped_files", skippedFiles.get());
+        status.put("processed", processed.get());
+        return status;
+    }
+
+    /**
+     * Reads a file through memory-mapped regions.
+     */
+    private static class MappedInputStream extends InputStream {
+        private static final long REGION_SIZE = 1L << 30;
+
+        private final FileChannel channel;
+
+        private long position = 0;
+
+        private MappedByteBuffer buffer;
+
+        MappedInputStream(final FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        private boolean hasRemaining() throws IOException {
+            if (buffer != null && buffer.hasRemaining()) {
+                return true;
+            }
+            final long fileSize = channel.size();
+            if (position >= fileSize) {
+                return false;
+            }
+            final long regionSize = Math.min(REGION_SIZE, fileSize - position);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    regionSize);
+            position += regionSize;
+            return true;
+        }
+    }
+}
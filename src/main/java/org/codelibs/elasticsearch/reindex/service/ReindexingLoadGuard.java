@@ -0,0 +1,328 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.CommonStatsFlags;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.index.search.stats.SearchStats;
+import org.elasticsearch.monitor.jvm.JvmStats;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.threadpool.ThreadPoolStats;
+
+/**
+ * Protects the nodes holding a source index from a scan. Stats of the nodes
+ * are sampled every "load_check_interval", and the nodes are stressed if the
+ * search queue, search rejections, the ratio of GC time or the average
+ * search latency exceed the thresholds. While the nodes are stressed, the
+ * delay before each scroll request is doubled up to "load_max_delay", and it
+ * is halved after they recover.
+ */
+class ReindexingLoadGuard {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingLoadGuard.class);
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    private final String index;
+
+    private final TimeValue interval;
+
+    private final int maxSearchQueue;
+
+    private final long maxSearchRejections;
+
+    private final int maxGcPercent;
+
+    private final TimeValue maxSearchLatency;
+
+    private final TimeValue minDelay;
+
+    private final TimeValue maxDelay;
+
+    private final Map<String, NodeSample> samples = new HashMap<String, NodeSample>();
+
+    private volatile boolean stopped = false;
+
+    private volatile long delay = 0;
+
+    private volatile boolean stressed = false;
+
+    private volatile String reason;
+
+    private long checks = 0;
+
+    private long stressedChecks = 0;
+
+    private int searchQueue = 0;
+
+    private long searchRejections = 0;
+
+    private int gcPercent = 0;
+
+    private long searchLatency = 0;
+
+    ReindexingLoadGuard(final Client client,
+            final ClusterService clusterService, final ThreadPool threadPool,
+            final String index, final Params params) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.index = index;
+        interval = TimeValue.parseTimeValue(
+                params.param("load_check_interval", "5s"), null);
+        maxSearchQueue = Integer.parseInt(params.param(
+                "load_max_search_queue", "50"));
+        maxSearchRejections = Long.parseLong(params.param(
+                "load_max_search_rejections", "0"));
+        maxGcPercent = Integer.parseInt(params.param("load_max_gc_percent",
+                "10"));
+        maxSearchLatency = TimeValue.parseTimeValue(
+                params.param("load_max_search_latency", "500ms"), null);
+        minDelay = TimeValue.parseTimeValue(
+                params.param("load_min_delay", "100ms"), null);
+        maxDelay = TimeValue.parseTimeValue(
+                params.param("load_max_delay", "30s"), null);
+        if (interval.millis() <= 0 || minDelay.millis() <= 0
+                || maxDelay.millis() < minDelay.millis()) {
+            throw new ReindexingException(
+                    "load_check_interval and load_min_delay should be positive, and load_max_delay should not be less than load_min_delay.");
+        }
+        // a scroll context has to outlive the longest delay, and its
+        // keep-alive is "scroll", or at most "max_scroll" if adaptive
+        if (params.paramAsBoolean("adaptive_scroll", true)) {
+            if (maxDelay.millis() >= TimeValue.parseTimeValue(
+                    params.param("max_scroll", "30m"), null).millis()) {
+                throw new ReindexingException(
+                        "load_max_delay should be shorter than max_scroll.");
+            }
+        } else if (maxDelay.millis() >= TimeValue.parseTimeValue(
+                params.param("scroll", "1m"), null).millis()) {
+            throw new ReindexingException(
+                    "load_max_delay should be shorter than scroll.");
+        }
+    }
+
+    public void start() {
+        check();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the delay in milliseconds before the next scroll request.
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    private void check() {
+        if (stopped) {
+            return;
+        }
+        final String[] nodeIds;
+        try {
+            nodeIds = getSourceNodes(clusterService.state());
+        } catch (final Exception e) {
+            logger.warn("Failed to find nodes of " + index + ".", e);
+            scheduleCheck();
+            return;
+        }
+        if (nodeIds.length == 0) {
+            scheduleCheck();
+            return;
+        }
+        client.admin().cluster().prepareNodesStats(nodeIds).clear()
+                .setThreadPool(true).setJvm(true)
+                .setIndices(new CommonStatsFlags(CommonStatsFlags.Flag.Search))
+                .execute(new ActionListener<NodesStatsResponse>() {
+                    @Override
+                    public void onResponse(final NodesStatsResponse response) {
+                        update(response.getNodes());
+                        scheduleCheck();
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        logger.warn("Failed to get stats of nodes for "
+                                + index + ".", e);
+                        scheduleCheck();
+                    }
+                });
+    }
+
+    private void scheduleCheck() {
+        if (stopped) {
+            return;
+        }
+        threadPool.schedule(interval, ThreadPool.Names.GENERIC,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        check();
+                    }
+                });
+    }
+
+    private String[] getSourceNodes(final ClusterState state) {
+        final String[] indices = state.metaData().concreteIndices(
+                IndicesOptions.lenientExpandOpen(), index);
+        final Set<String> nodeIds = new LinkedHashSet<String>();
+        for (final ShardRouting shard : state.routingTable().allShards(
+                indices)) {
+            if (shard.active()) {
+                nodeIds.add(shard.currentNodeId());
+            }
+        }
+        return nodeIds.toArray(new String[nodeIds.size()]);
+    }
+
+    private synchronized void update(final NodeStats[] nodes) {
+        int queue = 0;
+        long rejections = 0;
+        int gc = 0;
+        long latency = 0;
+        for (final NodeStats node : nodes) {
+            final NodeSample current = new NodeSample(node);
+            final NodeSample previous = samples.put(node.getNode().id(),
+                    current);
+            queue = Math.max(queue, current.searchQueue);
+            if (previous == null) {
+                continue;
+            }
+            final long elapsed = current.timestamp - previous.timestamp;
+            rejections += Math.max(current.searchRejected
+                    - previous.searchRejected, 0);
+            if (elapsed > 0) {
+                gc = Math.max(gc, (int) ((current.gcMillis - previous.gcMillis)
+                        * 100 / elapsed));
+            }
+            final long queries = current.queryCount - previous.queryCount;
+            if (queries > 0) {
+                latency = Math.max(latency,
+                        (current.queryMillis - previous.queryMillis)
+                                / queries);
+            }
+        }
+        searchQueue = queue;
+        searchRejections = rejections;
+        gcPercent = gc;
+        searchLatency = latency;
+
+        if (queue > maxSearchQueue) {
+            reason = "search_queue";
+        } else if (rejections > maxSearchRejections) {
+            reason = "search_rejections";
+        } else if (gc > maxGcPercent) {
+            reason = "gc_percent";
+        } else if (latency > maxSearchLatency.millis()) {
+            reason = "search_latency";
+        } else {
+            reason = null;
+        }
+
+        checks++;
+        final long previousDelay = delay;
+        if (reason != null) {
+            stressedChecks++;
+            delay = previousDelay == 0 ? minDelay.millis() : Math.min(
+                    previousDelay * 2, maxDelay.millis());
+        } else {
+            delay = previousDelay / 2 < minDelay.millis() ? 0
+                    : previousDelay / 2;
+        }
+        if ((reason != null) != stressed) {
+            stressed = reason != null;
+            if (stressed) {
+                logger.info("Slowing down a scan of {}: {} (queue: {}, rejections: {}, gc: {}%, latency: {}ms)",
+                        index, reason, queue, rejections, gc, latency);
+            } else {
+                logger.info("Nodes of {} have recovered.", index);
+            }
+        }
+        if (logger.isDebugEnabled() && delay != previousDelay) {
+            logger.debug("Changed the delay of scroll requests on " + index
+                    + " from " + previousDelay + "ms to " + delay + "ms.");
+        }
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("stressed", stressed);
+        if (reason != null) {
+            status.put("reason", reason);
+        }
+        status.put("delay_millis", delay);
+        status.put("checks", checks);
+        status.put("stressed_checks", stressedChecks);
+        status.put("search_queue", searchQueue);
+        status.put("search_rejections", searchRejections);
+        status.put("gc_percent", gcPercent);
+        status.put("search_latency_millis", searchLatency);
+        return status;
+    }
+
+    /**
+     * Cumulative counters of a node at a time.
+     */
+    private static class NodeSample {
+        private final long timestamp;
+
+        private int searchQueue = 0;
+
+        private long searchRejected = 0;
+
+        private long gcMillis = 0;
+
+        private long queryCount = 0;
+
+        private long queryMillis = 0;
+
+        NodeSample(final NodeStats node) {
+            timestamp = node.getTimestamp();
+            if (node.getThreadPool() != null) {
+                for (final ThreadPoolStats.Stats stats : node.getThreadPool()) {
+                    if (ThreadPool.Names.SEARCH.equals(stats.getName())) {
+                        searchQueue = stats.getQueue();
+                        searchRejected = stats.getRejected();
+                    }
+                }
+            }
+            if (node.getJvm() != null) {
+                for (final JvmStats.GarbageCollector collector : node.getJvm()
+                        .getGc()) {
+                    gcMillis += collector.getCollectionTime().millis();
+                }
+            }
+            if (node.getIndices() != null
+                    && node.getIndices().getSearch() != null) {
+                final SearchStats.Stats search = node.getIndices()
+                        .getSearch().getTotal();
+                queryCount = search.getQueryCount();
+                queryMillis = search.getQueryTimeInMillis();
+            }
+        }
+    }
+}
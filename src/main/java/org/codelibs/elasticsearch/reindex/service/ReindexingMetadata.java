@@ -0,0 +1,183 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.util.lang.StringUtils;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+
+/**
+ * Metadata fields of source documents carried over to target documents. The
+ * fields are planned from the mappings of the source types before a scan,
+ * so that only stored fields which exist are requested: _parent for a type
+ * with a parent, _routing for a type which requires routing or derives it
+ * from a path (or for all types with "routing=true"), _timestamp for a type
+ * with a stored timestamp, and _ttl for a type with TTL enabled. Hits of a
+ * type without metadata are copied with _source only.
+ */
+class ReindexingMetadata {
+
+    static final String PARENT = "_parent";
+
+    static final String ROUTING = "_routing";
+
+    static final String TIMESTAMP = "_timestamp";
+
+    static final String TTL = "_ttl";
+
+    private final Map<String, String[]> typeFields;
+
+    private final String[] fields;
+
+    ReindexingMetadata(final Map<String, String[]> typeFields) {
+        this.typeFields = typeFields;
+        final Set<String> fieldSet = new LinkedHashSet<String>();
+        fieldSet.add("_source");
+        for (final String[] values : typeFields.values()) {
+            fieldSet.addAll(Arrays.asList(values));
+        }
+        fields = fieldSet.toArray(new String[fieldSet.size()]);
+    }
+
+    /**
+     * Plans metadata fields for the types given by "type" of the indices
+     * matched by index. "parent=false" skips _parent.
+     */
+    static ReindexingMetadata create(final ClusterState state,
+            final String index, final Params params) {
+        final boolean parent = params.paramAsBoolean("parent", true);
+        final boolean routing = params.paramAsBoolean("routing", false);
+        final String type = params.param("type");
+        final Set<String> types = StringUtils.isNotBlank(type) ? new LinkedHashSet<String>(
+                Arrays.asList(type.split(","))) : null;
+        final Map<String, Set<String>> fieldSets = new HashMap<String, Set<String>>();
+        for (final String concreteIndex : state.metaData().concreteIndices(
+                IndicesOptions.lenientExpandOpen(), index)) {
+            final IndexMetaData indexMetaData = state.metaData().index(
+                    concreteIndex);
+            for (final ObjectCursor<MappingMetaData> cursor : indexMetaData
+                    .mappings().values()) {
+                final MappingMetaData mapping = cursor.value;
+                if (types != null && !types.contains(mapping.type())) {
+                    continue;
+                }
+                Set<String> fieldSet = fieldSets.get(mapping.type());
+                if (fieldSet == null) {
+                    fieldSet = new LinkedHashSet<String>();
+                    fieldSets.put(mapping.type(), fieldSet);
+                }
+                addFields(fieldSet, mapping, parent, routing);
+            }
+        }
+        final Map<String, String[]> typeFields = new HashMap<String, String[]>();
+        for (final Map.Entry<String, Set<String>> entry : fieldSets
+                .entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                typeFields.put(entry.getKey(), entry.getValue().toArray(
+                        new String[entry.getValue().size()]));
+            }
+        }
+        return new ReindexingMetadata(typeFields);
+    }
+
+    private static void addFields(final Set<String> fieldSet,
+            final MappingMetaData mapping, final boolean parent,
+            final boolean routing) {
+        if (parent && mapping.hasParentField()) {
+            fieldSet.add(PARENT);
+        }
+        if (routing || mapping.routing().required()
+                || mapping.routing().hasPath()) {
+            fieldSet.add(ROUTING);
+        }
+        final Map<String, Object> source;
+        try {
+            source = mapping.sourceAsMap();
+        } catch (final IOException e) {
+            throw new ReindexingException("Failed to parse a mapping of "
+                    + mapping.type(), e);
+        }
+        // _timestamp is not stored by default
+        if (mapping.timestamp().enabled()
+                && XContentMapValues.nodeBooleanValue(
+                        XContentMapValues.extractValue("_timestamp.store",
+                                source), false)) {
+            fieldSet.add(TIMESTAMP);
+        }
+        if (XContentMapValues.nodeBooleanValue(
+                XContentMapValues.extractValue("_ttl.enabled", source), false)) {
+            fieldSet.add(TTL);
+        }
+    }
+
+    /**
+     * Returns the fields to be requested by a scan, including _source.
+     */
+    public String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Copies metadata of a hit to a request. Returns false if the hit has
+     * expired by its TTL and should not be copied.
+     */
+    public boolean apply(final SearchHit hit, final IndexRequest request) {
+        final String[] names = typeFields.get(hit.getType());
+        if (names == null) {
+            return true;
+        }
+        long timestamp = -1;
+        long ttl = -1;
+        for (final String name : names) {
+            final SearchHitField field = hit.field(name);
+            if (field == null || field.getValue() == null) {
+                continue;
+            }
+            final Object value = field.getValue();
+            if (PARENT.equals(name)) {
+                request.parent(value.toString());
+            } else if (ROUTING.equals(name)) {
+                request.routing(value.toString());
+            } else if (TIMESTAMP.equals(name)) {
+                request.timestamp(value.toString());
+                timestamp = ((Number) value).longValue();
+            } else if (TTL.equals(name)) {
+                // the value is the time left to live
+                ttl = ((Number) value).longValue();
+                if (ttl <= 0) {
+                    return false;
+                }
+            }
+        }
+        if (ttl > 0) {
+            // a document expires at _timestamp + _ttl, so the time left is
+            // extended by the age of the copied timestamp
+            request.ttl(timestamp < 0 ? ttl : ttl + System.currentTimeMillis()
+                    - timestamp);
+        }
+        return true;
+    }
+
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new TreeMap<String, Object>();
+        for (final Map.Entry<String, String[]> entry : typeFields.entrySet()) {
+            status.put(entry.getKey(), Arrays.asList(entry.getValue()));
+        }
+        return status;
+    }
+}
@@ -0,0 +1,39 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * A request sent to each node to get or delete its reindexing tasks. A name
+ * is null if the request is for all tasks.
+ */
+class ReindexingNodeRequest extends TransportRequest {
+
+    private String name;
+
+    ReindexingNodeRequest() {
+    }
+
+    ReindexingNodeRequest(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        name = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(name);
+    }
+}
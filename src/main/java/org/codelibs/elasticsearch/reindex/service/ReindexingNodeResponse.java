@@ -0,0 +1,40 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/**
+ * A response from a node, which contains the status of its reindexing
+ * tasks and stats.
+ */
+class ReindexingNodeResponse extends TransportResponse {
+
+    private Map<String, Object> content;
+
+    ReindexingNodeResponse() {
+    }
+
+    ReindexingNodeResponse(final Map<String, Object> content) {
+        this.content = content;
+    }
+
+    public Map<String, Object> getContent() {
+        return content;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        content = in.readMap();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(content);
+    }
+}
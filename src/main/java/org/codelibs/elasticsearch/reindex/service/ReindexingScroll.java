@@ -0,0 +1,189 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+
+/**
+ * Manages scroll contexts of a scan. The contexts are cleared when the scan
+ * is completed, failed or interrupted, and the keep-alive of the next scroll
+ * call is computed from the time taken to process previous pages.
+ */
+class ReindexingScroll {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingScroll.class);
+
+    private static final double SMOOTHING_FACTOR = 0.2;
+
+    private final AtomicBoolean cleared = new AtomicBoolean(false);
+
+    private final AtomicInteger contexts = new AtomicInteger(-1);
+
+    private final Client client;
+
+    private final ReindexingStats stats;
+
+    private final TimeValue initialKeepAlive;
+
+    private final boolean adaptive;
+
+    private final TimeValue margin;
+
+    private final TimeValue maxKeepAlive;
+
+    private volatile TimeValue keepAlive;
+
+    private volatile String scrollId;
+
+    private long lastResponseTime = 0;
+
+    private double averageProcessingTime = -1;
+
+    ReindexingScroll(final Client client, final ReindexingStats stats,
+            final Params params) {
+        this(client, stats, TimeValue.parseTimeValue(
+                params.param("scroll", "1m"), null), params.paramAsBoolean(
+                "adaptive_scroll", true), TimeValue.parseTimeValue(
+                params.param("scroll_margin", "30s"), null), TimeValue
+                .parseTimeValue(params.param("max_scroll", "30m"), null));
+    }
+
+    private ReindexingScroll(final Client client,
+            final ReindexingStats stats, final TimeValue initialKeepAlive,
+            final boolean adaptive, final TimeValue margin,
+            final TimeValue maxKeepAlive) {
+        if (initialKeepAlive.millis() <= 0 || maxKeepAlive.millis() <= 0
+                || margin.millis() < 0) {
+            throw new ReindexingException(
+                    "scroll and max_scroll should be positive, and scroll_margin should not be negative.");
+        }
+        this.client = client;
+        this.stats = stats;
+        this.initialKeepAlive = initialKeepAlive;
+        this.adaptive = adaptive;
+        this.margin = margin;
+        this.maxKeepAlive = maxKeepAlive;
+        keepAlive = initialKeepAlive;
+    }
+
+    /**
+     * Creates a manager for another scan with the same settings.
+     */
+    public ReindexingScroll newScroll() {
+        return new ReindexingScroll(client, stats, initialKeepAlive, adaptive,
+                margin, maxKeepAlive);
+    }
+
+    /**
+     * Returns a keep-alive for the initial search request.
+     */
+    public TimeValue getInitialKeepAlive() {
+        return initialKeepAlive;
+    }
+
+    /**
+     * Records a scroll id and the number of contexts opened by a response.
+     */
+    public void onResponse(final SearchResponse response) {
+        synchronized (this) {
+            lastResponseTime = System.nanoTime();
+        }
+        final String previousId = scrollId;
+        scrollId = response.getScrollId();
+        if (contexts.compareAndSet(-1, response.getSuccessfulShards())) {
+            stats.addScrollContexts(response.getSuccessfulShards());
+        }
+        if (cleared.get() && scrollId != null
+                && !scrollId.equals(previousId)) {
+            // a response arrived after the scroll was cleared
+            sendClearScroll(scrollId);
+        }
+    }
+
+    /**
+     * Fetches the next page with a keep-alive which covers the time to
+     * process it.
+     */
+    public void next(final ActionListener<SearchResponse> listener) {
+        if (adaptive) {
+            updateKeepAlive();
+        }
+        client.prepareSearchScroll(scrollId).setScroll(keepAlive)
+                .setListenerThreaded(true).execute(listener);
+    }
+
+    private synchronized void updateKeepAlive() {
+        if (lastResponseTime == 0) {
+            return;
+        }
+        final long processingTime = (System.nanoTime() - lastResponseTime)
+                / 1000000;
+        if (averageProcessingTime < 0) {
+            averageProcessingTime = processingTime;
+        } else {
+            averageProcessingTime += SMOOTHING_FACTOR
+                    * (processingTime - averageProcessingTime);
+        }
+        final long millis = 2
+                * (long) Math.max(averageProcessingTime, processingTime)
+                + margin.millis();
+        keepAlive = new TimeValue(Math.min(millis, maxKeepAlive.millis()));
+    }
+
+    /**
+     * Clears the scroll contexts. It's safe to call this method more than
+     * once.
+     */
+    public void clear() {
+        if (!cleared.compareAndSet(false, true)) {
+            return;
+        }
+        final int opened = contexts.getAndSet(0);
+        if (opened > 0) {
+            stats.addScrollContexts(-opened);
+        }
+        if (scrollId != null) {
+            sendClearScroll(scrollId);
+        }
+    }
+
+    private void sendClearScroll(final String id) {
+        client.prepareClearScroll().addScrollId(id)
+                .execute(new ActionListener<ClearScrollResponse>() {
+                    @Override
+                    public void onResponse(final ClearScrollResponse response) {
+                        // nothing
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Failed to clear a scroll.", e);
+                        }
+                    }
+                });
+    }
+
+    public int getContexts() {
+        return Math.max(contexts.get(), 0);
+    }
+
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("contexts", getContexts());
+        status.put("keep_alive", keepAlive.toString());
+        return status;
+    }
+}
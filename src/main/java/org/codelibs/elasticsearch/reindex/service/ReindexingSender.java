@@ -0,0 +1,818 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlException;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
+import org.codelibs.elasticsearch.runner.net.CurlRequest.ConnectionBuilder;
+import org.codelibs.elasticsearch.util.lang.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Serializes index requests into bulk requests and sends them to a local
+ * or remote cluster. A bulk request is split when it exceeds max_bulk_size,
+ * so a large document is sent in its own bulk request. For a remote
+ * cluster, bulk bodies are written to temporary files while buffered bytes
+ * of this sender exceed spill_threshold.
+ */
+class ReindexingSender {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingSender.class);
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final ReindexingStats stats;
+
+    private final PipelineStage sendStage;
+
+    private final String url;
+
+    private final XContentType remoteFormat;
+
+    private final BulkGrouping bulkGrouping;
+
+    private final long maxBulkSize;
+
+    private final long spillThreshold;
+
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+    private final AtomicLong oversizedDocs = new AtomicLong(0);
+
+    private final AtomicLong spilledBulks = new AtomicLong(0);
+
+    ReindexingSender(final Client client, final ClusterService clusterService,
+            final ReindexingStats stats, final Params params,
+            final PipelineStage sendStage) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.stats = stats;
+        this.sendStage = sendStage;
+        url = getUrl(params);
+        final String format = params.param("remote_format", "json");
+        if ("json".equalsIgnoreCase(format)) {
+            remoteFormat = XContentType.JSON;
+        } else if ("smile".equalsIgnoreCase(format)) {
+            remoteFormat = XContentType.SMILE;
+        } else {
+            throw new ReindexingException(
+                    "remote_format should be json or smile: " + format);
+        }
+        // documents for a template of toindex are sent per target index
+        bulkGrouping = BulkGrouping.of(params.param("bulk_grouping",
+                IndexNameTemplate.isTemplate(params.param("toindex")) ? "index"
+                        : null));
+        maxBulkSize = ByteSizeValue.parseBytesSizeValue(
+                params.param("max_bulk_size", "10mb")).bytes();
+        spillThreshold = ByteSizeValue.parseBytesSizeValue(
+                params.param("spill_threshold", "256mb")).bytes();
+    }
+
+    /**
+     * Returns a url of a remote cluster, which ends with "/", or null for
+     * the local cluster.
+     */
+    public static String getUrl(final Params params) {
+        final String url = params.param("url");
+        return url != null && !url.endsWith("/") ? url + "/" : url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Serializes requests on the current thread and sends them on the send
+     * stage. Bulk requests split by size are sent one after another, or one
+     * per group with bulk_grouping. The listener is notified when all bulk
+     * requests complete.
+     */
+    public void send(final List<IndexRequest> requests,
+            final ActionListener<Void> listener) throws IOException {
+        send(requests, null, listener);
+    }
+
+    /**
+     * Sends requests, and records the bytes, the end of the build phase and
+     * "took" of bulk responses into batch if it is not null.
+     */
+    public void send(final List<IndexRequest> requests,
+            final ReindexingBatch batch, final ActionListener<Void> listener)
+            throws IOException {
+        for (final IndexRequest request : requests) {
+            if (request.source().length() > maxBulkSize) {
+                oversizedDocs.incrementAndGet();
+            }
+        }
+        if (url == null) {
+            final List<List<BulkRequest>> groups = groupBulkRequests(requests);
+            long bytes = 0;
+            for (final List<BulkRequest> group : groups) {
+                for (final BulkRequest bulkRequest : group) {
+                    bytes += bulkRequest.estimatedSizeInBytes();
+                }
+            }
+            if (batch != null) {
+                batch.addBytes(bytes);
+                batch.end(ReindexingBatch.Phase.BUILD);
+            }
+            executeSend(bytes, new Runnable() {
+                @Override
+                public void run() {
+                    new BulkQueue<BulkRequest>(groups, listener) {
+                        @Override
+                        void send(final BulkRequest bulkRequest,
+                                final ActionListener<Void> listener) {
+                            sendToLocalCluster(bulkRequest, batch, listener);
+                        }
+
+                        @Override
+                        void release(final BulkRequest bulkRequest) {
+                            addBufferedBytes(-bulkRequest
+                                    .estimatedSizeInBytes());
+                        }
+                    }.start();
+                }
+            });
+        } else {
+            final List<BulkBody> bodies = serializeBulkBodies(requests);
+            if (batch != null) {
+                for (final BulkBody body : bodies) {
+                    batch.addBytes(body.length());
+                }
+                batch.end(ReindexingBatch.Phase.BUILD);
+            }
+            new BulkQueue<BulkBody>(Collections.singletonList(bodies),
+                    listener) {
+                @Override
+                void send(final BulkBody body,
+                        final ActionListener<Void> listener) {
+                    sendStage.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendToRemoteCluster(body, batch, listener);
+                        }
+                    });
+                }
+
+                @Override
+                void release(final BulkBody body) {
+                    body.release();
+                }
+            }.start();
+        }
+    }
+
+    private List<BulkBody> serializeBulkBodies(
+            final List<IndexRequest> requests) throws IOException {
+        final List<BulkBody> bodies = new ArrayList<BulkBody>();
+        BulkBody body = null;
+        String index = null;
+        try {
+            for (final IndexRequest request : groupByIndex(requests)) {
+                final boolean nextIndex = bulkGrouping == BulkGrouping.INDEX
+                        && index != null && !index.equals(request.index());
+                index = request.index();
+                if (body != null && body.length() > 0
+                        && (nextIndex || body.length()
+                                + request.source().length() > maxBulkSize)) {
+                    body.close();
+                    bodies.add(body);
+                    body = null;
+                }
+                if (body == null) {
+                    body = new BulkBody(bufferedBytes.get() >= spillThreshold);
+                }
+                writeIndexAction(body.getOutputStream(), request,
+                        remoteFormat, true);
+            }
+            if (body != null) {
+                body.close();
+                bodies.add(body);
+            }
+        } catch (final IOException | RuntimeException e) {
+            if (body != null) {
+                try {
+                    body.close();
+                } finally {
+                    body.release();
+                }
+            }
+            for (final BulkBody b : bodies) {
+                b.release();
+            }
+            throw e;
+        }
+        return bodies;
+    }
+
+    /**
+     * Sorts requests by their index for bulk_grouping=index, keeping the
+     * order of the first request of each index.
+     */
+    private List<IndexRequest> groupByIndex(final List<IndexRequest> requests) {
+        if (bulkGrouping != BulkGrouping.INDEX) {
+            return requests;
+        }
+        final Map<String, List<IndexRequest>> requestMap = new LinkedHashMap<String, List<IndexRequest>>();
+        for (final IndexRequest request : requests) {
+            List<IndexRequest> list = requestMap.get(request.index());
+            if (list == null) {
+                list = new ArrayList<IndexRequest>();
+                requestMap.put(request.index(), list);
+            }
+            list.add(request);
+        }
+        final List<IndexRequest> grouped = new ArrayList<IndexRequest>(
+                requests.size());
+        for (final List<IndexRequest> list : requestMap.values()) {
+            grouped.addAll(list);
+        }
+        return grouped;
+    }
+
+    private void executeSend(final long bytes, final Runnable task) {
+        addBufferedBytes(bytes);
+        try {
+            sendStage.execute(task);
+        } catch (final RuntimeException e) {
+            addBufferedBytes(-bytes);
+            throw e;
+        }
+    }
+
+    private void addBufferedBytes(final long bytes) {
+        bufferedBytes.addAndGet(bytes);
+        stats.addBufferedBytes(bytes);
+    }
+
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("buffered_bytes", bufferedBytes.get());
+        status.put("oversized_docs", oversizedDocs.get());
+        status.put("spilled_bulks", spilledBulks.get());
+        return status;
+    }
+
+    /**
+     * Writes an action line and a source of a bulk request. _index is
+     * omitted if the request does not have it. If reuseSource is true, a
+     * source in the same format and on one line is written as it is;
+     * otherwise it is re-serialized on one line.
+     */
+    public static void writeIndexAction(final OutputStream out,
+            final IndexRequest request, final XContentType format,
+            final boolean reuseSource) throws IOException {
+        final XContent xContent = format.xContent();
+        final XContentBuilder builder = XContentFactory.contentBuilder(format);
+        builder.startObject().startObject("index");
+        if (request.index() != null) {
+            builder.field("_index", request.index());
+        }
+        builder.field("_type", request.type());
+        builder.field("_id", request.id());
+        if (request.parent() != null) {
+            builder.field("_parent", request.parent());
+        }
+        if (request.routing() != null
+                && !request.routing().equals(request.parent())) {
+            builder.field("_routing", request.routing());
+        }
+        if (request.timestamp() != null) {
+            builder.field("_timestamp", request.timestamp());
+        }
+        if (request.ttl() > 0) {
+            builder.field("_ttl", request.ttl());
+        }
+        builder.endObject().endObject();
+        builder.bytes().writeTo(out);
+        out.write(xContent.streamSeparator());
+        final BytesReference source = request.source();
+        if (reuseSource && XContentFactory.xContentType(source) == format
+                && !contains(source, xContent.streamSeparator())) {
+            // stored bytes are sent as is
+            source.writeTo(out);
+        } else {
+            try (XContentParser parser = XContentFactory.xContent(source)
+                    .createParser(source)) {
+                parser.nextToken();
+                final XContentBuilder sourceBuilder = XContentFactory
+                        .contentBuilder(format);
+                sourceBuilder.copyCurrentStructure(parser);
+                sourceBuilder.bytes().writeTo(out);
+            }
+        }
+        out.write(xContent.streamSeparator());
+    }
+
+    /**
+     * Returns true if a source contains a separator of bulk lines, such as
+     * a newline of pretty-printed JSON.
+     */
+    private static boolean contains(final BytesReference source,
+            final byte separator) {
+        for (int i = 0; i < source.length(); i++) {
+            if (source.get(i) == separator) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendToLocalCluster(final BulkRequest bulkRequest,
+            final ReindexingBatch batch, final ActionListener<Void> listener) {
+        final long bytes = bulkRequest.estimatedSizeInBytes();
+        sendStage.begin();
+        stats.onBulkStarted();
+        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(final BulkResponse bulkResponse) {
+                onBulkCompleted();
+                if (batch != null) {
+                    batch.addTook(bulkResponse.getTookInMillis());
+                }
+                if (bulkResponse.hasFailures()) {
+                    listener.onFailure(new ReindexingException(bulkResponse
+                            .buildFailureMessage()));
+                } else {
+                    listener.onResponse(null);
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                onBulkCompleted();
+                listener.onFailure(e);
+            }
+
+            private void onBulkCompleted() {
+                sendStage.end();
+                stats.onBulkCompleted();
+                addBufferedBytes(-bytes);
+            }
+        });
+    }
+
+    /**
+     * Groups requests by bulkGrouping, and returns bulk requests per group.
+     * A group is split into bulk requests of up to maxBulkSize, which are
+     * sent one after another.
+     */
+    private List<List<BulkRequest>> groupBulkRequests(
+            final List<IndexRequest> requests) {
+        final ClusterState state = bulkGrouping == BulkGrouping.NONE
+                || bulkGrouping == BulkGrouping.INDEX ? null : clusterService
+                .state();
+        final Map<String, String> concreteIndexMap = new LinkedHashMap<String, String>();
+        final Map<String, List<BulkRequest>> groupMap = new LinkedHashMap<String, List<BulkRequest>>();
+        for (final IndexRequest request : requests) {
+            final String key;
+            if (bulkGrouping == BulkGrouping.INDEX) {
+                key = request.index();
+            } else {
+                key = state == null ? "" : getGroupKey(state,
+                        concreteIndexMap, request);
+            }
+            List<BulkRequest> group = groupMap.get(key);
+            if (group == null) {
+                group = new ArrayList<BulkRequest>();
+                groupMap.put(key, group);
+            }
+            BulkRequest bulkRequest = group.isEmpty() ? null : group
+                    .get(group.size() - 1);
+            if (bulkRequest == null
+                    || bulkRequest.numberOfActions() > 0
+                    && bulkRequest.estimatedSizeInBytes()
+                            + request.source().length() > maxBulkSize) {
+                bulkRequest = new BulkRequest();
+                group.add(bulkRequest);
+            }
+            bulkRequest.add(request);
+        }
+        return new ArrayList<List<BulkRequest>>(groupMap.values());
+    }
+
+    /**
+     * Returns the number of target shards of requests, or -1 for a remote
+     * cluster.
+     */
+    public int getShardSpread(final List<IndexRequest> requests) {
+        if (url != null) {
+            return -1;
+        }
+        final ClusterState state = clusterService.state();
+        final Map<String, String> concreteIndexMap = new LinkedHashMap<String, String>();
+        final Set<Object> shards = new HashSet<Object>();
+        for (final IndexRequest request : requests) {
+            final ShardId shardId = getShardId(state, concreteIndexMap,
+                    request);
+            shards.add(shardId != null ? shardId : request.index());
+        }
+        return shards.size();
+    }
+
+    private String getGroupKey(final ClusterState state,
+            final Map<String, String> concreteIndexMap,
+            final IndexRequest request) {
+        final ShardId shardId = getShardId(state, concreteIndexMap, request);
+        if (shardId == null) {
+            return request.index();
+        }
+        if (bulkGrouping == BulkGrouping.NODE) {
+            final ShardRouting primary = state.routingTable()
+                    .index(shardId.getIndex()).shard(shardId.id())
+                    .primaryShard();
+            if (primary != null && primary.currentNodeId() != null) {
+                return primary.currentNodeId();
+            }
+        }
+        return shardId.toString();
+    }
+
+    /**
+     * Returns a shard id of a request, or null if the index does not exist.
+     */
+    private ShardId getShardId(final ClusterState state,
+            final Map<String, String> concreteIndexMap,
+            final IndexRequest request) {
+        final String index = request.index();
+        String concreteIndex = concreteIndexMap.get(index);
+        if (concreteIndex == null) {
+            try {
+                concreteIndex = state.metaData().concreteSingleIndex(index,
+                        IndicesOptions.strictSingleIndexNoExpandForbidClosed());
+            } catch (final Exception e) {
+                // the index will be created by the first bulk request
+                concreteIndex = "";
+            }
+            concreteIndexMap.put(index, concreteIndex);
+        }
+        if (concreteIndex.length() == 0) {
+            return null;
+        }
+
+        final String routing = state.metaData().resolveIndexRouting(
+                request.routing(), index);
+        return clusterService.operationRouting()
+                .indexShards(state, concreteIndex, request.type(),
+                        request.id(), routing).shardId();
+    }
+
+    private void sendToRemoteCluster(final BulkBody body,
+            final ReindexingBatch batch, final ActionListener<Void> listener) {
+        // a failure while writing is followed by the response callback
+        final AtomicBoolean notified = new AtomicBoolean(false);
+        stats.onBulkStarted();
+        try {
+            Curl.post(url + "_bulk").onConnect(new ConnectionBuilder() {
+                @Override
+                public void onConnect(final CurlRequest curlRequest,
+                        final HttpURLConnection connection) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type",
+                            remoteFormat.restContentType());
+                    // not to buffer the body in HttpURLConnection
+                    connection.setFixedLengthStreamingMode(body.length());
+                    try (OutputStream out = connection.getOutputStream()) {
+                        body.writeTo(out);
+                        out.flush();
+                    } catch (final IOException e) {
+                        if (notified.compareAndSet(false, true)) {
+                            listener.onFailure(e);
+                        }
+                    }
+                }
+            }).execute(new Curl.ResponseListener() {
+                @Override
+                public void onResponse(final HttpURLConnection con) {
+                    if (notified.get()) {
+                        return;
+                    }
+                    try {
+                        final int responseCode = con.getResponseCode();
+                        if (responseCode != 200) {
+                            throw new ReindexingException(
+                                    "The response code from " + url + " is "
+                                            + responseCode);
+                        }
+                        final long took = checkBulkFailures(con);
+                        if (batch != null) {
+                            batch.addTook(took);
+                        }
+                    } catch (final Exception e) {
+                        if (notified.compareAndSet(false, true)) {
+                            listener.onFailure(e);
+                        }
+                        return;
+                    }
+                    if (notified.compareAndSet(false, true)) {
+                        listener.onResponse(null);
+                    }
+                }
+            });
+        } catch (final CurlException e) {
+            if (notified.compareAndSet(false, true)) {
+                listener.onFailure(e);
+            }
+        } finally {
+            stats.onBulkCompleted();
+            body.release();
+        }
+    }
+
+    /**
+     * Throws an exception if an item in a bulk response failed, such as a
+     * rejected execution on the remote cluster. Otherwise, returns "took" of
+     * the response.
+     */
+    private long checkBulkFailures(final HttpURLConnection con)
+            throws IOException {
+        final byte[] content;
+        try (InputStream in = con.getInputStream()) {
+            content = Streams.copyToByteArray(in);
+        }
+        final Map<String, Object> response = XContentHelper.convertToMap(
+                content, false).v2();
+        if (!Boolean.TRUE.equals(response.get("errors"))) {
+            final Object took = response.get("took");
+            return took instanceof Number ? ((Number) took).longValue() : 0;
+        }
+        int failures = 0;
+        Object error = null;
+        final Object items = response.get("items");
+        if (items instanceof List) {
+            for (final Object item : (List<?>) items) {
+                if (!(item instanceof Map)) {
+                    continue;
+                }
+                for (final Object result : ((Map<?, ?>) item).values()) {
+                    if (result instanceof Map
+                            && ((Map<?, ?>) result).get("error") != null) {
+                        failures++;
+                        if (error == null) {
+                            error = ((Map<?, ?>) result).get("error");
+                        }
+                    }
+                }
+            }
+        }
+        throw new ReindexingException(failures
+                + " documents failed in a bulk request to " + url + ": "
+                + error);
+    }
+
+    /**
+     * A body of a bulk request, which is kept in memory or written to a
+     * temporary file. Bytes in memory are counted as buffered bytes until
+     * it is released.
+     */
+    private class BulkBody {
+        private BytesStreamOutput bytes;
+
+        private Path file;
+
+        private CountingOutputStream out;
+
+        private boolean closed = false;
+
+        BulkBody(final boolean spill) throws IOException {
+            if (spill) {
+                file = Files.createTempFile("reindexing-", ".bulk");
+                out = new CountingOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(file), 65536));
+                spilledBulks.incrementAndGet();
+            } else {
+                bytes = new BytesStreamOutput();
+                out = new CountingOutputStream(bytes);
+            }
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        long length() {
+            return out.count;
+        }
+
+        void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+            if (file == null) {
+                addBufferedBytes(length());
+            } else {
+                stats.addSpilledBytes(length());
+            }
+        }
+
+        void writeTo(final OutputStream os) throws IOException {
+            if (file == null) {
+                bytes.bytes().writeTo(os);
+            } else {
+                Files.copy(file, os);
+            }
+        }
+
+        void release() {
+            if (file == null) {
+                if (closed) {
+                    addBufferedBytes(-length());
+                }
+                return;
+            }
+            if (closed) {
+                stats.addSpilledBytes(-length());
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException e) {
+                logger.warn("Failed to delete " + file + ".", e);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Sends groups of items concurrently, and the items of a group one after
+     * another, so that one item per group is in flight. A listener is
+     * notified when all items complete. Items not sent yet are released on a
+     * failure.
+     */
+    private abstract static class BulkQueue<T> {
+        private final List<LinkedList<T>> queues;
+
+        private final ActionListener<Void> listener;
+
+        private int running = 0;
+
+        private Throwable failure;
+
+        BulkQueue(final List<List<T>> groups, final ActionListener<Void> listener) {
+            queues = new ArrayList<LinkedList<T>>(groups.size());
+            for (final List<T> group : groups) {
+                if (!group.isEmpty()) {
+                    queues.add(new LinkedList<T>(group));
+                }
+            }
+            this.listener = listener;
+        }
+
+        abstract void send(T item, ActionListener<Void> listener);
+
+        abstract void release(T item);
+
+        void start() {
+            if (queues.isEmpty()) {
+                listener.onResponse(null);
+                return;
+            }
+            for (int i = 0; i < queues.size(); i++) {
+                sendNext(i);
+            }
+        }
+
+        private void sendNext(final int group) {
+            final T item;
+            synchronized (this) {
+                if (failure != null || queues.get(group).isEmpty()) {
+                    return;
+                }
+                item = queues.get(group).removeFirst();
+                running++;
+            }
+            try {
+                send(item, new ActionListener<Void>() {
+                    @Override
+                    public void onResponse(final Void response) {
+                        onCompleted(group, null);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        onCompleted(group, e);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                release(item);
+                onCompleted(group, e);
+            }
+        }
+
+        private void onCompleted(final int group, final Throwable e) {
+            final List<T> unsent = new ArrayList<T>();
+            final boolean done;
+            synchronized (this) {
+                running--;
+                if (e != null && failure == null) {
+                    failure = e;
+                }
+                boolean empty = true;
+                for (final LinkedList<T> queue : queues) {
+                    if (failure != null) {
+                        unsent.addAll(queue);
+                        queue.clear();
+                    } else if (!queue.isEmpty()) {
+                        empty = false;
+                    }
+                }
+                done = running == 0 && empty;
+            }
+            for (final T item : unsent) {
+                release(item);
+            }
+            if (done) {
+                if (failure != null) {
+                    listener.onFailure(failure);
+                } else {
+                    listener.onResponse(null);
+                }
+            } else {
+                sendNext(group);
+            }
+        }
+    }
+
+    enum BulkGrouping {
+        NONE, INDEX, SHARD, NODE;
+
+        static BulkGrouping of(final String value) {
+            if (StringUtils.isBlank(value)) {
+                return NONE;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException e) {
+                throw new ReindexingException("Invalid bulk_grouping: "
+                        + value);
+            }
+        }
+    }
+}
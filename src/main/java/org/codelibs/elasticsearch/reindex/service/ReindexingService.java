@@ -1,56 +1,113 @@
 package org.codelibs.elasticsearch.reindex.service;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
-import org.codelibs.elasticsearch.runner.net.Curl;
-import org.codelibs.elasticsearch.runner.net.CurlException;
-import org.codelibs.elasticsearch.runner.net.CurlRequest;
-import org.codelibs.elasticsearch.runner.net.CurlRequest.ConnectionBuilder;
 import org.codelibs.elasticsearch.util.lang.StringUtils;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequestBuilder;
-import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.MoreExecutors;
 import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentile;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportService;
 
 public class ReindexingService extends
         AbstractLifecycleComponent<ReindexingService> {
 
+    private static final String STATUS_ACTION = "cluster:monitor/reindex/status";
+
+    private static final String DELETE_ACTION = "cluster:admin/reindex/delete";
+
     private Client client;
 
-    private Map<String, ReindexingListener> reindexingListenerMap = new ConcurrentHashMap<String, ReindexingService.ReindexingListener>();
+    private ClusterService clusterService;
+
+    private TransportService transportService;
+
+    private Path dumpPath;
+
+    private ReindexingStats stats = new ReindexingStats();
+
+    private ReindexingSlowLog slowLog;
 
-    private ThreadPool threadPool;;
+    private Map<String, ReindexingTask> reindexingTaskMap = new ConcurrentHashMap<String, ReindexingTask>();
+
+    private ThreadPool threadPool;
 
     @Inject
     public ReindexingService(final Settings settings, final Client client,
-            final ThreadPool threadPool) {
+            final ClusterService clusterService,
+            final TransportService transportService,
+            final ThreadPool threadPool, final Environment environment) {
         super(settings);
         this.client = client;
+        this.clusterService = clusterService;
+        this.transportService = transportService;
         this.threadPool = threadPool;
+        final String dumpPath = settings.get("reindexing.dump.path");
+        this.dumpPath = (dumpPath != null ? Paths.get(dumpPath) : environment
+                .homeFile().toPath().resolve("dump")).toAbsolutePath()
+                .normalize();
+        slowLog = new ReindexingSlowLog(settings);
+
+        transportService.registerHandler(STATUS_ACTION,
+                new NodeRequestHandler(false));
+        transportService.registerHandler(DELETE_ACTION,
+                new NodeRequestHandler(true));
     }
 
     @Override
@@ -63,8 +120,8 @@ public class ReindexingService extends
     @Override
     protected void doStop() throws ElasticsearchException {
         logger.info("Stopping ReindexingService...");
-        for (ReindexingListener listener : reindexingListenerMap.values()) {
-            listener.interrupt();
+        for (ReindexingTask task : reindexingTaskMap.values()) {
+            task.interrupt();
         }
     }
 
@@ -73,150 +130,987 @@ public class ReindexingService extends
         // nothing
     }
 
-    public boolean exists(final String name) {
-        return reindexingListenerMap.containsKey(name);
+    /**
+     * Gets names of reindexing processes running on all nodes.
+     */
+    public void getNames(final ActionListener<List<String>> listener) {
+        sendToNodes(STATUS_ACTION, null,
+                new ActionListener<Map<String, Map<String, Object>>>() {
+                    @Override
+                    public void onResponse(
+                            final Map<String, Map<String, Object>> response) {
+                        final List<String> names = new ArrayList<String>();
+                        for (final Map<String, Object> node : response
+                                .values()) {
+                            final Map<String, Object> tasks = getTasks(node);
+                            names.addAll(tasks.keySet());
+                        }
+                        listener.onResponse(names);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    /**
+     * Gets the status of a reindexing process on any node. The response
+     * contains "node" and "status", or is null if the process is not found.
+     */
+    public void getStatus(final String name,
+            final ActionListener<Map<String, Object>> listener) {
+        sendToNodes(STATUS_ACTION, name, new FindTaskListener(name, false,
+                listener));
+    }
+
+    /**
+     * Stops a reindexing process on any node.
+     */
+    public void delete(final String name,
+            final ActionListener<Map<String, Object>> listener) {
+        sendToNodes(DELETE_ACTION, name, new FindTaskListener(name, true,
+                listener));
     }
 
-    public String[] getNames() {
-        return reindexingListenerMap.keySet().toArray(
-                new String[reindexingListenerMap.size()]);
+    /**
+     * Gets stats of reindexing processes per node and in total.
+     */
+    public void getStats(final ActionListener<Map<String, Object>> listener) {
+        sendToNodes(STATUS_ACTION, null,
+                new ActionListener<Map<String, Map<String, Object>>>() {
+                    @Override
+                    public void onResponse(
+                            final Map<String, Map<String, Object>> response) {
+                        final Map<String, Object> total = new LinkedHashMap<String, Object>();
+                        total.put("tasks", 0);
+                        final Map<String, Object> nodes = new LinkedHashMap<String, Object>();
+                        for (final Map.Entry<String, Map<String, Object>> entry : response
+                                .entrySet()) {
+                            final Map<String, Object> node = entry.getValue();
+                            final Map<String, Object> nodeStats = new LinkedHashMap<String, Object>();
+                            nodeStats.put("name", node.get("name"));
+                            if (node.containsKey("error")) {
+                                nodeStats.put("error", node.get("error"));
+                                nodes.put(entry.getKey(), nodeStats);
+                                continue;
+                            }
+                            nodeStats.put("tasks", getTasks(node).size());
+                            @SuppressWarnings("unchecked")
+                            final Map<String, Object> values = (Map<String, Object>) node
+                                    .get("stats");
+                            nodeStats.putAll(values);
+                            for (final Map.Entry<String, Object> value : nodeStats
+                                    .entrySet()) {
+                                if (value.getValue() instanceof Number) {
+                                    addNumber(total, value.getKey(),
+                                            (Number) value.getValue());
+                                }
+                            }
+                            nodes.put(entry.getKey(), nodeStats);
+                        }
+                        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+                        result.put("total", total);
+                        result.put("nodes", nodes);
+                        listener.onResponse(result);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    private static void addNumber(final Map<String, Object> map,
+            final String key, final Number value) {
+        final Object current = map.get(key);
+        if (value instanceof Double || value instanceof Float
+                || current instanceof Double) {
+            map.put(key, (current == null ? 0 : ((Number) current)
+                    .doubleValue()) + value.doubleValue());
+        } else {
+            map.put(key, (current == null ? 0 : ((Number) current)
+                    .longValue()) + value.longValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getTasks(final Map<String, Object> node) {
+        final Map<String, Object> tasks = (Map<String, Object>) node
+                .get("tasks");
+        return tasks != null ? tasks : Collections.<String, Object> emptyMap();
+    }
+
+    private void sendToNodes(final String action, final String name,
+            final ActionListener<Map<String, Map<String, Object>>> listener) {
+        final DiscoveryNodes nodes = clusterService.state().nodes();
+        final Map<String, Map<String, Object>> responses = new TreeMap<String, Map<String, Object>>();
+        final AtomicInteger counter = new AtomicInteger(nodes.size());
+        final ReindexingNodeRequest request = new ReindexingNodeRequest(name);
+        for (final DiscoveryNode node : nodes) {
+            transportService.sendRequest(node, action, request,
+                    new BaseTransportResponseHandler<ReindexingNodeResponse>() {
+                        @Override
+                        public ReindexingNodeResponse newInstance() {
+                            return new ReindexingNodeResponse();
+                        }
+
+                        @Override
+                        public void handleResponse(
+                                final ReindexingNodeResponse response) {
+                            onNodeResponse(node, response.getContent());
+                        }
+
+                        @Override
+                        public void handleException(final TransportException e) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Failed to send " + action
+                                        + " to " + node + ".", e);
+                            }
+                            final Map<String, Object> content = new LinkedHashMap<String, Object>();
+                            content.put("name", node.name());
+                            content.put("error", e.getMessage());
+                            onNodeResponse(node, content);
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+
+                        private void onNodeResponse(final DiscoveryNode node,
+                                final Map<String, Object> content) {
+                            synchronized (responses) {
+                                responses.put(node.id(), content);
+                            }
+                            if (counter.decrementAndGet() == 0) {
+                                listener.onResponse(responses);
+                            }
+                        }
+                    });
+        }
     }
 
-    public void delete(final String name) {
-        final ReindexingListener reindexingListener = reindexingListenerMap
-                .remove(name);
-        if (reindexingListener != null) {
-            reindexingListener.interrupt();
+    private Map<String, Object> getLocalStatus(final String name,
+            final boolean delete) {
+        final Map<String, Object> tasks = new LinkedHashMap<String, Object>();
+        if (name == null) {
+            for (final Map.Entry<String, ReindexingTask> entry : reindexingTaskMap
+                    .entrySet()) {
+                tasks.put(entry.getKey(), entry.getValue().getStatus());
+            }
         } else {
-            throw new ReindexingException("Reindexing process " + name
-                    + " is not found.");
+            final ReindexingTask reindexingTask = delete ? reindexingTaskMap
+                    .remove(name) : reindexingTaskMap.get(name);
+            if (reindexingTask != null) {
+                if (delete) {
+                    reindexingTask.interrupt();
+                }
+                tasks.put(name, reindexingTask.getStatus());
+            }
+        }
+        final Map<String, Object> content = new LinkedHashMap<String, Object>();
+        content.put("name", clusterService.localNode().name());
+        content.put("tasks", tasks);
+        content.put("stats", stats.getStatus());
+        return content;
+    }
+
+    private class NodeRequestHandler extends
+            BaseTransportRequestHandler<ReindexingNodeRequest> {
+        private final boolean delete;
+
+        NodeRequestHandler(final boolean delete) {
+            this.delete = delete;
+        }
+
+        @Override
+        public ReindexingNodeRequest newInstance() {
+            return new ReindexingNodeRequest();
+        }
+
+        @Override
+        public void messageReceived(final ReindexingNodeRequest request,
+                final TransportChannel channel) throws Exception {
+            channel.sendResponse(new ReindexingNodeResponse(getLocalStatus(
+                    request.getName(), delete)));
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.MANAGEMENT;
+        }
+    }
+
+    private static class FindTaskListener implements
+            ActionListener<Map<String, Map<String, Object>>> {
+        private final String name;
+
+        private final boolean required;
+
+        private final ActionListener<Map<String, Object>> listener;
+
+        FindTaskListener(final String name, final boolean required,
+                final ActionListener<Map<String, Object>> listener) {
+            this.name = name;
+            this.required = required;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onResponse(final Map<String, Map<String, Object>> response) {
+            for (final Map.Entry<String, Map<String, Object>> entry : response
+                    .entrySet()) {
+                final Object status = getTasks(entry.getValue()).get(name);
+                if (status != null) {
+                    final Map<String, Object> result = new LinkedHashMap<String, Object>();
+                    result.put("node", entry.getKey());
+                    result.put("status", status);
+                    listener.onResponse(result);
+                    return;
+                }
+            }
+            if (required) {
+                listener.onFailure(new ReindexingException(
+                        "Reindexing process " + name + " is not found."));
+            } else {
+                listener.onResponse(null);
+            }
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            listener.onFailure(e);
         }
     }
 
     public String execute(final Params params, final BytesReference content,
             final ActionListener<Void> listener) {
-        final String url = params.param("url");
-        final String scroll = params.param("scroll", "1m");
         final String fromIndex = params.param("index");
-        final String fromType = params.param("type");
         final String toIndex = params.param("toindex");
-        final String toType = params.param("totype");
-        final String[] fields = params.paramAsBoolean("parent", true) ? new String[] {
-                "_source", "_parent" }
-                : new String[] { "_source" };
-        final ReindexingListener reindexingListener = new ReindexingListener(
-                url, toIndex, toType, scroll, listener);
+        if (toIndex == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+
+        final String name = UUID.randomUUID().toString();
+        final ActionListener<Void> taskListener = removeOnCompletion(name,
+                listener);
+
+        final ReindexingTask reindexingTask;
+        if (Regex.isSimpleMatchPattern(fromIndex)
+                && Regex.isSimpleMatchPattern(toIndex)) {
+            final String[] indices = clusterService
+                    .state()
+                    .metaData()
+                    .concreteIndices(IndicesOptions.lenientExpandOpen(),
+                            fromIndex);
+            if (indices.length == 0) {
+                throw new ReindexingException("No index matches " + fromIndex
+                        + ".");
+            }
+            Arrays.sort(indices);
+            final ReindexingGroup reindexingGroup = new ReindexingGroup(name,
+                    Integer.parseInt(params.param("max_concurrent", "2")),
+                    taskListener);
+            for (final String index : indices) {
+                reindexingGroup.add(createReindexingTask(name + "/" + index,
+                        index, renameIndex(fromIndex, toIndex, index),
+                        params, content, reindexingGroup));
+            }
+            reindexingTask = reindexingGroup;
+        } else {
+            reindexingTask = createReindexingTask(name, fromIndex, toIndex,
+                    params, content, taskListener);
+        }
+        reindexingTaskMap.put(name, reindexingTask);
+        reindexingTask.start();
+        return name;
+    }
+
+    public String verify(final Params params,
+            final ActionListener<Map<String, Object>> listener) {
+        final String name = UUID.randomUUID().toString();
+        final ReindexingVerifier reindexingVerifier = new ReindexingVerifier(
+                name, client, clusterService.state(), params,
+                new ReindexingScroll(client, stats, params),
+                removeOnCompletion(name, listener));
+        reindexingTaskMap.put(name, reindexingVerifier);
+        reindexingVerifier.start();
+        return name;
+    }
+
+    /**
+     * Estimates the time and size of reindexing from index to toindex by
+     * sampling "sample_size" documents per shard.
+     */
+    public String estimate(final Params params, final BytesReference content,
+            final ActionListener<Map<String, Object>> listener) {
+        final String fromIndex = params.param("index");
+        final String toIndex = params.param("toindex");
+        if (toIndex == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        if (Regex.isSimpleMatchPattern(fromIndex)) {
+            throw new ReindexingException(
+                    "dry_run does not support an index pattern: " + fromIndex);
+        }
+        final int sampleSize = Integer.parseInt(params.param("sample_size",
+                "100"));
+        if (sampleSize < 1) {
+            throw new ReindexingException("sample_size should be positive.");
+        }
+        final int shards = ReindexingVerifier.getNumberOfShards(
+                clusterService.state(), fromIndex);
+        final ReindexingMetadata metadata = ReindexingMetadata.create(
+                clusterService.state(), fromIndex, params);
+        final List<SearchRequestBuilder> shardRequestBuilders = new ArrayList<SearchRequestBuilder>(
+                shards);
+        for (int shard = 0; shard < shards; shard++) {
+            shardRequestBuilders.add(createSearchRequestBuilder(fromIndex,
+                    params, content, metadata, null, sampleSize).setPreference(
+                    "_shards:" + shard));
+        }
+        final String name = UUID.randomUUID().toString();
+        final ReindexingEstimator reindexingEstimator = new ReindexingEstimator(
+                name, client, fromIndex, toIndex, params,
+                shardRequestBuilders, metadata,
+                new ReindexingScroll(client, stats, params),
+                new ReindexingSender(client, clusterService, stats, params,
+                        new PipelineStage(threadPool.generic())),
+                removeOnCompletion(name, listener));
+        reindexingTaskMap.put(name, reindexingEstimator);
+        reindexingEstimator.start();
+        return name;
+    }
+
+    /**
+     * Writes documents of an index into dump files under a directory given
+     * by "path".
+     */
+    public String exportDump(final Params params,
+            final BytesReference content, final ActionListener<Void> listener) {
+        final String fromIndex = params.param("index");
+        final Path dir = getDumpPath(params);
+        final ReindexingMetadata metadata = ReindexingMetadata.create(
+                clusterService.state(), fromIndex, params);
+        final String name = UUID.randomUUID().toString();
+        final ReindexingExporter reindexingExporter = new ReindexingExporter(
+                name, fromIndex, dir, params.param("prefix",
+                        fromIndex.replaceAll("[^\\w.-]", "_")),
+                Integer.parseInt(params.param("segment_size", "100000")),
+                new ReindexingScroll(client, stats, params), metadata,
+                createSearchRequestBuilder(fromIndex, params, content,
+                        metadata, null), removeOnCompletion(name, listener));
+        reindexingTaskMap.put(name, reindexingExporter);
+        reindexingExporter.start();
+        return name;
+    }
+
+    /**
+     * Sends documents in dump files under a directory given by "path" to
+     * toindex.
+     */
+    public String importDump(final Params params,
+            final ActionListener<Void> listener) {
+        final String toIndex = params.param("toindex");
+        if (toIndex == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        final Path dir = getDumpPath(params);
+        final int readers = Integer.parseInt(params.param("readers", "2"));
+        if (readers < 1) {
+            throw new ReindexingException("readers should be positive.");
+        }
+        final ReindexingSender sender = new ReindexingSender(client,
+                clusterService, stats, params, new PipelineStage(
+                        MoreExecutors.directExecutor()));
+        final String name = UUID.randomUUID().toString();
+        final ReindexingImporter reindexingImporter = new ReindexingImporter(
+                name, dir, toIndex, params.param("totype"),
+                Integer.parseInt(params.param("size", "1000")),
+                params.paramAsBoolean("resume", true), sender,
+                EsExecutors.newFixed(readers, -1, EsExecutors
+                        .daemonThreadFactory(settings, "reindexing", "import")),
+                removeOnCompletion(name, listener));
+        reindexingTaskMap.put(name, reindexingImporter);
+        reindexingImporter.start();
+        return name;
+    }
+
+    private Path getDumpPath(final Params params) {
+        final String path = params.param("path");
+        if (StringUtils.isBlank(path)) {
+            throw new ReindexingException("path is blank.");
+        }
+        final Path dir = dumpPath.resolve(path).normalize();
+        if (!dir.startsWith(dumpPath)) {
+            throw new ReindexingException(path + " is not under " + dumpPath
+                    + ".");
+        }
+        return dir;
+    }
+
+    private <T> ActionListener<T> removeOnCompletion(final String name,
+            final ActionListener<T> listener) {
+        return new ActionListener<T>() {
+            @Override
+            public void onResponse(final T response) {
+                reindexingTaskMap.remove(name);
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                reindexingTaskMap.remove(name);
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    private ReindexingTask createReindexingTask(final String name,
+            final String fromIndex, final String toIndex, final Params params,
+            final BytesReference content, final ActionListener<Void> listener) {
+        final String partitionField = params.param("partition_field");
+        final int partitions = Integer.parseInt(params.param("partitions",
+                "1"));
+        if (StringUtils.isNotBlank(partitionField) && partitions > 1) {
+            return new PartitionedReindexing(name, fromIndex, toIndex,
+                    partitionField, partitions, params, content, listener);
+        }
+        final ReindexingMetadata metadata = ReindexingMetadata.create(
+                clusterService.state(), fromIndex, params);
+        return new ReindexingListener(name, fromIndex, toIndex, params,
+                metadata, createSearchRequestBuilder(fromIndex, params,
+                        content, metadata, null), listener);
+    }
+
+    private SearchRequestBuilder createSearchRequestBuilder(
+            final String fromIndex, final Params params,
+            final BytesReference content, final ReindexingMetadata metadata,
+            final FilterBuilder filter) {
+        return createSearchRequestBuilder(fromIndex, params, content,
+                metadata, filter, content == null ? Integer.parseInt(params.param("size",
+                        "1000")) : -1);
+    }
+
+    /**
+     * Creates a SCAN request. A negative size keeps the size of the query
+     * given in content.
+     */
+    private SearchRequestBuilder createSearchRequestBuilder(
+            final String fromIndex, final Params params,
+            final BytesReference content, final ReindexingMetadata metadata,
+            final FilterBuilder filter, final int size) {
+        final String fromType = params.param("type");
+        // only metadata fields in the mappings are loaded
+        final String[] fields = metadata.getFields();
         final SearchRequestBuilder builder = client.prepareSearch(fromIndex)
-                .setSearchType(SearchType.SCAN).setScroll(scroll)
-                .addFields(fields).setListenerThreaded(true);
+                .setSearchType(SearchType.SCAN)
+                .setScroll(params.param("scroll", "1m"))
+                .setListenerThreaded(true);
         if (StringUtils.isNotBlank(fromType)) {
             builder.setTypes(fromType.split(","));
         }
+        final SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .fields(fields);
         if (content == null) {
-            builder.setQuery(QueryBuilders.matchAllQuery()).setSize(
-                    Integer.parseInt(params.param("size", "1000")));
+            final QueryBuilder query = filter == null ? QueryBuilders
+                    .matchAllQuery() : QueryBuilders.filteredQuery(
+                    QueryBuilders.matchAllQuery(), filter);
+            builder.internalBuilder(sourceBuilder.query(query).size(size));
         } else {
+            // fields and the partition filter are merged into the given query
+            if (filter != null) {
+                sourceBuilder.postFilter(filter);
+            }
+            if (size >= 0) {
+                sourceBuilder.size(size);
+            }
             builder.setSource(content);
+            builder.request().extraSource(sourceBuilder);
         }
-        builder.execute(reindexingListener);
-        reindexingListenerMap.put(reindexingListener.getName(),
-                reindexingListener);
-        return reindexingListener.getName();
+        return builder;
     }
 
-    private class ReindexingListener implements ActionListener<SearchResponse> {
+    /**
+     * Replaces wildcards in toIndex with the parts of index matched by the
+     * wildcards in fromIndex, e.g. logstash-* to v2-logstash-*.
+     */
+    static String renameIndex(final String fromIndex, final String toIndex,
+            final String index) {
+        final String[] fromParts = fromIndex.split("\\*", -1);
+        final StringBuilder buf = new StringBuilder(
+                Pattern.quote(fromParts[0]));
+        for (int i = 1; i < fromParts.length; i++) {
+            buf.append("(.*)").append(Pattern.quote(fromParts[i]));
+        }
+        final Matcher matcher = Pattern.compile(buf.toString())
+                .matcher(index);
+        if (!matcher.matches()) {
+            throw new ReindexingException(index + " does not match "
+                    + fromIndex + ".");
+        }
+        final String[] toParts = toIndex.split("\\*", -1);
+        if (toParts.length - 1 != matcher.groupCount()) {
+            throw new ReindexingException(
+                    "The number of wildcards in toindex should be the same as index: "
+                            + toIndex);
+        }
+        final StringBuilder name = new StringBuilder(toParts[0]);
+        for (int i = 1; i < toParts.length; i++) {
+            name.append(matcher.group(i)).append(toParts[i]);
+        }
+        return name.toString();
+    }
+
+    private class ReindexingListener implements
+            ActionListener<SearchResponse>, ReindexingTask {
         private AtomicBoolean initialized = new AtomicBoolean(false);
 
         private AtomicBoolean interrupted = new AtomicBoolean(false);
 
+        private AtomicBoolean finished = new AtomicBoolean(false);
+
+        private AtomicLong processed = new AtomicLong(0);
+
+        private AtomicLong skipped = new AtomicLong(0);
+
+        private AtomicLong expired = new AtomicLong(0);
+
         private String url;
 
+        private String fromIndex;
+
+        private String fromType;
+
         private String toIndex;
 
         private String toType;
 
-        private String scroll;
+        private IndexNameTemplate toIndexTemplate;
+
+        private String defaultToIndex;
+
+        private Set<String> toIndices = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private volatile ReindexingScroll scroll;
+
+        private int size;
+
+        private ReindexingSender sender;
+
+        private ReindexingSync sync;
+
+        private boolean syncDelete;
 
         private String name;
 
+        private ReindexingMetadata metadata;
+
+        private SearchRequestBuilder searchRequestBuilder;
+
         private ActionListener<Void> listener;
 
-        private volatile String scrollId;
+        private volatile long total = -1;
+
+        private volatile String state = "pending";
+
+        private boolean pipeline;
+
+        private int maxPagesInFlight;
+
+        private int pagesInFlight = 0;
+
+        private boolean fetching = false;
+
+        private boolean scrollCompleted = false;
+
+        private boolean deleting = false;
+
+        private volatile long fetchStartTime;
+
+        private ReindexingTimings timings = new ReindexingTimings();
+
+        private ReindexingLoadGuard loadGuard;
+
+        private PipelineStage transformStage;
+
+        private PipelineStage serializeStage;
 
-        ReindexingListener(final String url, final String toIndex,
-                final String toType, final String scroll,
+        private PipelineStage sendStage;
+
+        private List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+        ReindexingListener(final String name, final String fromIndex,
+                final String toIndex, final Params params,
+                final ReindexingMetadata metadata,
+                final SearchRequestBuilder searchRequestBuilder,
                 final ActionListener<Void> listener) {
-            this.url = url != null && !url.endsWith("/") ? url + "/" : url;
+            final String url = ReindexingSender.getUrl(params);
+            this.url = url;
+            this.name = name;
+            this.fromIndex = fromIndex;
             this.toIndex = toIndex;
-            this.toType = toType;
-            this.scroll = scroll;
+            this.fromType = params.param("type");
+            this.toType = params.param("totype");
+            this.scroll = new ReindexingScroll(client, stats, params);
+            this.size = Integer.parseInt(params.param("size", "1000"));
+            if (IndexNameTemplate.isTemplate(toIndex)) {
+                toIndexTemplate = new IndexNameTemplate(toIndex);
+                defaultToIndex = params.param("default_toindex");
+                if (defaultToIndex != null
+                        && !IndexNameTemplate.isValidIndexName(defaultToIndex)) {
+                    throw new ReindexingException("Invalid default_toindex: "
+                            + defaultToIndex);
+                }
+            }
+            if (params.paramAsBoolean("sync", false)) {
+                sync = new ReindexingSync(client, this.url, params.param(
+                        "sync_field", "reindex_hash"));
+                syncDelete = params.paramAsBoolean("sync_delete", false);
+                if (syncDelete && url != null) {
+                    throw new ReindexingException(
+                            "sync_delete is not supported for a remote cluster.");
+                }
+                if (syncDelete && toIndexTemplate != null) {
+                    throw new ReindexingException(
+                            "sync_delete is not supported for a template of toindex.");
+                }
+            }
+            this.metadata = metadata;
+            this.searchRequestBuilder = searchRequestBuilder;
             this.listener = listener;
-            if (toIndex == null) {
-                throw new ReindexingException("toindex is blank.");
+
+            pipeline = params.paramAsBoolean("pipeline", false);
+            if (pipeline) {
+                maxPagesInFlight = Integer.parseInt(params.param(
+                        "pipeline_queue_size", "4"));
+                final int workers = Integer.parseInt(params.param(
+                        "pipeline_workers", "2"));
+                if (maxPagesInFlight < 1 || workers < 1) {
+                    throw new ReindexingException(
+                            "pipeline_queue_size and pipeline_workers should be positive.");
+                }
+                transformStage = new PipelineStage(newExecutor(workers,
+                        "transform"));
+                serializeStage = new PipelineStage(newExecutor(workers,
+                        "serialize"));
+                sendStage = new PipelineStage(url != null ? newExecutor(
+                        workers, "send") : MoreExecutors.directExecutor());
+            } else {
+                // a page is sent before fetching the next one
+                maxPagesInFlight = 1;
+                transformStage = new PipelineStage(
+                        MoreExecutors.directExecutor());
+                serializeStage = new PipelineStage(
+                        MoreExecutors.directExecutor());
+                sendStage = new PipelineStage(url != null ? threadPool
+                        .generic() : MoreExecutors.directExecutor());
+            }
+            sender = new ReindexingSender(client, clusterService, stats,
+                    params, sendStage);
+            if (params.paramAsBoolean("load_protection", false)) {
+                loadGuard = new ReindexingLoadGuard(client, clusterService,
+                        threadPool, fromIndex, params);
             }
-            name = UUID.randomUUID().toString();
+        }
+
+        private ExecutorService newExecutor(final int size,
+                final String stage) {
+            final ExecutorService executor = EsExecutors.newFixed(size,
+                    maxPagesInFlight, EsExecutors.daemonThreadFactory(
+                            settings, "reindexing", stage));
+            executors.add(executor);
+            return executor;
+        }
+
+        @Override
+        public void start() {
+            state = "running";
+            synchronized (this) {
+                fetching = true;
+            }
+            if (loadGuard != null) {
+                loadGuard.start();
+            }
+            if (sync == null || toIndexTemplate != null) {
+                startScan();
+                return;
+            }
+            sync.prepare(toIndex, getToTypes(), new ActionListener<Void>() {
+                @Override
+                public void onResponse(final Void response) {
+                    startScan();
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    ReindexingListener.this.onFailure(e);
+                }
+            });
+        }
+
+        private void startScan() {
+            fetchStartTime = System.nanoTime();
+            searchRequestBuilder.execute(this);
+        }
+
+        /**
+         * Returns "totype", "type" or the mapped types of the source index.
+         */
+        private String[] getToTypes() {
+            if (toType != null) {
+                return new String[] { toType };
+            } else if (StringUtils.isNotBlank(fromType)) {
+                return fromType.split(",");
+            }
+            final ClusterState state = clusterService.state();
+            final Set<String> types = new LinkedHashSet<String>();
+            for (final String concreteIndex : state.metaData().concreteIndices(
+                    IndicesOptions.lenientExpandOpen(), fromIndex)) {
+                for (final ObjectCursor<String> cursor : state.metaData()
+                        .index(concreteIndex).mappings().keys()) {
+                    if (!MapperService.DEFAULT_MAPPING.equals(cursor.value)) {
+                        types.add(cursor.value);
+                    }
+                }
+            }
+            return types.toArray(new String[types.size()]);
         }
 
         @Override
         public void onResponse(final SearchResponse response) {
+            scroll.onResponse(response);
             if (interrupted.get()) {
-                listener.onFailure(new ReindexingException("Interrupted."));
+                state = "interrupted";
+                finish(new ReindexingException("Interrupted."));
                 return;
             }
 
-            scrollId = response.getScrollId();
             if (initialized.compareAndSet(false, true)) {
-                client.prepareSearchScroll(scrollId).setScroll(scroll)
-                        .setListenerThreaded(true).execute(this);
+                total = response.getHits().getTotalHits();
+                synchronized (this) {
+                    fetching = false;
+                }
+                fetchNextPage();
                 return;
             }
 
             final SearchHits searchHits = response.getHits();
             final SearchHit[] hits = searchHits.getHits();
+            synchronized (this) {
+                fetching = false;
+                if (hits.length == 0) {
+                    scrollCompleted = true;
+                } else {
+                    pagesInFlight++;
+                }
+            }
             if (hits.length == 0) {
-                scrollId = null;
-                reindexingListenerMap.remove(name);
-                listener.onResponse(null);
-            } else if (url != null) {
-                threadPool.generic().execute(new Runnable() {
+                // a scan does not free its contexts at the last page
+                scroll.clear();
+                finishIfCompleted();
+                return;
+            }
+
+            final ReindexingBatch batch = new ReindexingBatch(fetchStartTime,
+                    hits.length);
+            try {
+                transformStage.execute(new Runnable() {
                     @Override
                     public void run() {
-                        sendToRemoteCluster(scrollId, hits);
+                        try {
+                            transform(hits, batch);
+                        } catch (final Exception e) {
+                            ReindexingListener.this.onFailure(e);
+                        }
                     }
                 });
-            } else {
-                sendToLocalCluster(scrollId, hits);
+            } catch (final Exception e) {
+                onFailure(e);
+                return;
+            }
+            fetchNextPage();
+        }
+
+        private void fetchNextPage() {
+            synchronized (this) {
+                if (fetching || scrollCompleted || finished.get()
+                        || pagesInFlight >= maxPagesInFlight) {
+                    return;
+                }
+                fetching = true;
+            }
+            final long delay = loadGuard != null ? loadGuard.getDelay() : 0;
+            if (delay <= 0) {
+                fetchScroll();
+                return;
+            }
+            // the source nodes are stressed
+            try {
+                threadPool.schedule(TimeValue.timeValueMillis(delay),
+                        ThreadPool.Names.GENERIC, new Runnable() {
+                            @Override
+                            public void run() {
+                                fetchScroll();
+                            }
+                        });
+            } catch (final Exception e) {
+                onFailure(e);
+            }
+        }
+
+        private void fetchScroll() {
+            if (interrupted.get()) {
+                state = "interrupted";
+                finish(new ReindexingException("Interrupted."));
+                return;
+            }
+            fetchStartTime = System.nanoTime();
+            scroll.next(this);
+        }
+
+        private void onPageCompleted(final int size,
+                final ReindexingBatch batch,
+                final List<IndexRequest> requests) {
+            final boolean slow = slowLog.isSlow(batch);
+            if (slow) {
+                slowLog.log(name, toIndex, batch,
+                        sender.getShardSpread(requests));
+            }
+            timings.add(batch, slow);
+            processed.addAndGet(size);
+            stats.onProcessed(size);
+            synchronized (this) {
+                pagesInFlight--;
+            }
+            fetchNextPage();
+            finishIfCompleted();
+        }
+
+        private void finishIfCompleted() {
+            final boolean startDeleting;
+            synchronized (this) {
+                if (!scrollCompleted || pagesInFlight > 0 || deleting) {
+                    return;
+                }
+                startDeleting = syncDelete;
+                if (startDeleting) {
+                    syncDelete = false;
+                    deleting = true;
+                }
+            }
+            if (startDeleting && !finished.get()) {
+                state = "deleting";
+                deleteRemovedDocuments();
+                return;
+            }
+            if (finished.compareAndSet(false, true)) {
+                state = "completed";
+                shutdownExecutors();
+                listener.onResponse(null);
+            }
+        }
+
+        private void finish(final Throwable t) {
+            if (finished.compareAndSet(false, true)) {
+                shutdownExecutors();
+                listener.onFailure(t);
+            }
+        }
+
+        private void shutdownExecutors() {
+            scroll.clear();
+            if (loadGuard != null) {
+                loadGuard.stop();
+            }
+            for (final ExecutorService executor : executors) {
+                executor.shutdown();
             }
         }
 
-        private void sendToLocalCluster(final String scrollId,
-                final SearchHit[] hits) {
-            final BulkRequestBuilder bulkRequest = client.prepareBulk();
+        private void deleteRemovedDocuments() {
+            final String[] fromTypes = StringUtils.isNotBlank(fromType) ? fromType
+                    .split(",") : new String[0];
+            final String[] toTypes = toType != null ? new String[] { toType }
+                    : fromTypes;
+            scroll = scroll.newScroll();
+            sync.deleteRemoved(fromIndex, fromTypes, toIndex, toTypes,
+                    toType == null, scroll, size, new ActionListener<Long>() {
+                        @Override
+                        public void onResponse(final Long deleted) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Deleted " + deleted
+                                        + " documents from " + toIndex + ".");
+                            }
+                            synchronized (ReindexingListener.this) {
+                                deleting = false;
+                            }
+                            finishIfCompleted();
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            ReindexingListener.this.onFailure(e);
+                        }
+                    });
+        }
+
+        private void transform(final SearchHit[] hits,
+                final ReindexingBatch batch) {
+            batch.end(ReindexingBatch.Phase.QUEUE);
+            final List<IndexRequest> requests = new ArrayList<IndexRequest>(
+                    hits.length);
+            final List<SearchHit> sourceHits = new ArrayList<SearchHit>(
+                    hits.length);
             for (final SearchHit hit : hits) {
-                IndexRequestBuilder builder = client.prepareIndex(toIndex,
-                        toType != null ? toType : hit.getType(), hit.getId())
-                        .setSource(hit.getSource());
-                Map<String, SearchHitField> fields = hit.getFields();
-                if (fields != null && fields.containsKey("_parent")) {
-                    SearchHitField parentField = fields.get("_parent");
-                    if (parentField != null) {
-                        String parentId = parentField.getValue();
-                        builder.setParent(parentId);
-                    }
+                if (url != null && hit.sourceRef() == null) {
+                    continue;
+                }
+                final IndexRequest request = new IndexRequest(
+                        getToIndex(hit), toType != null ? toType
+                                : hit.getType(), hit.getId());
+                if (!metadata.apply(hit, request)) {
+                    expired.incrementAndGet();
+                    continue;
                 }
-                bulkRequest.add(builder);
+                if (sync == null) {
+                    setSource(request, hit);
+                }
+                requests.add(request);
+                sourceHits.add(hit);
+            }
+
+            batch.end(ReindexingBatch.Phase.TRANSFORM);
+            if (sync == null) {
+                serializeLater(hits.length, requests, batch);
+                return;
             }
 
-            bulkRequest.execute(new ActionListener<BulkResponse>() {
+            sync.lookup(requests, new ActionListener<Long[]>() {
                 @Override
-                public void onResponse(final BulkResponse bulkResponse) {
-                    if (bulkResponse.hasFailures()) {
-                        throw new ReindexingException(bulkResponse
-                                .buildFailureMessage());
+                public void onResponse(final Long[] targetHashes) {
+                    batch.end(ReindexingBatch.Phase.LOOKUP);
+                    final List<IndexRequest> changedRequests = new ArrayList<IndexRequest>(
+                            requests.size());
+                    for (int i = 0; i < requests.size(); i++) {
+                        final SearchHit hit = sourceHits.get(i);
+                        final long hash = ReindexingSync.hash(hit.sourceRef());
+                        if (targetHashes[i] != null
+                                && targetHashes[i].longValue() == hash) {
+                            continue;
+                        }
+                        final Map<String, Object> source = new LinkedHashMap<String, Object>(
+                                hit.sourceAsMap());
+                        source.put(sync.getField(), hash);
+                        changedRequests.add(requests.get(i).source(source));
                     }
-                    client.prepareSearchScroll(scrollId).setScroll(scroll)
-                            .setListenerThreaded(true)
-                            .execute(ReindexingListener.this);
+                    skipped.addAndGet(requests.size() - changedRequests.size());
+                    batch.end(ReindexingBatch.Phase.TRANSFORM);
+                    serializeLater(hits.length, changedRequests, batch);
                 }
 
                 @Override
@@ -226,116 +1120,294 @@ public class ReindexingService extends
             });
         }
 
-        private void sendToRemoteCluster(final String scrollId,
-                final SearchHit[] hits) {
+        /**
+         * Returns a target index of a hit, which is computed from its source
+         * if toindex is a template.
+         */
+        private String getToIndex(final SearchHit hit) {
+            if (toIndexTemplate == null) {
+                return toIndex;
+            }
+            String index;
             try {
-                Curl.post(url + "_bulk").onConnect(new ConnectionBuilder() {
-                    @Override
-                    public void onConnect(CurlRequest curlRequest,
-                            HttpURLConnection connection) {
-                        connection.setDoOutput(true);
-                        try (BufferedWriter writer = new BufferedWriter(
-                                new OutputStreamWriter(connection
-                                        .getOutputStream(), curlRequest
-                                        .encoding()))) {
-                            StringBuilder buf = new StringBuilder(200);
-                            for (final SearchHit hit : hits) {
-                                String source = hit.getSourceAsString();
-                                if (source != null) {
-                                    buf.setLength(0);
-                                    buf.append("{\"index\":{\"_index\":\"");
-                                    buf.append(toIndex);
-                                    buf.append("\",\"_type\":\"");
-                                    if (toType == null) {
-                                        buf.append(hit.getType());
-                                    } else {
-                                        buf.append(toType);
-                                    }
-                                    buf.append("\",\"_id\":\"");
-                                    buf.append(hit.getId());
-                                    buf.append("\"");
-                                    Map<String, SearchHitField> fields = hit
-                                            .getFields();
-                                    if (fields != null
-                                            && fields.containsKey("_parent")) {
-                                        SearchHitField parentField = fields
-                                                .get("_parent");
-                                        if (parentField != null) {
-                                            String parentId = parentField
-                                                    .getValue();
-                                            buf.append(",\"_parent\":\"");
-                                            buf.append(parentId);
-                                            buf.append("\"");
-                                        }
-                                    }
-                                    buf.append("}}");
-                                    writer.write(buf.toString());
-                                    writer.write("\n");
-                                    writer.write(source);
-                                    writer.write("\n");
-                                }
-                            }
-                            writer.flush();
-                        } catch (IOException e) {
-                            ReindexingListener.this.onFailure(e);
-                        }
-                    }
-                }).execute(new Curl.ResponseListener() {
-                    @Override
-                    public void onResponse(HttpURLConnection con) {
-                        try {
-                            int responseCode = con.getResponseCode();
-                            if (responseCode == 200) {
-                                client.prepareSearchScroll(scrollId)
-                                        .setScroll(scroll)
-                                        .setListenerThreaded(true)
-                                        .execute(ReindexingListener.this);
-                            } else {
-                                throw new ReindexingException(
-                                        "The response code from " + url + " is");
-                            }
-                        } catch (Exception e) {
-                            ReindexingListener.this.onFailure(e);
-                        }
-                    }
-                });
-            } catch (CurlException e) {
-                onFailure(e);
+                index = toIndexTemplate.resolve(hit.getSource());
+            } catch (final ReindexingException e) {
+                // a value which is not a date is sent to default_toindex
+                if (defaultToIndex == null) {
+                    throw new ReindexingException("Failed to resolve "
+                            + toIndexTemplate + " in " + hit.getType() + "/"
+                            + hit.getId() + ".", e);
+                }
+                index = null;
+            }
+            if (index == null) {
+                if (defaultToIndex == null) {
+                    throw new ReindexingException("No value for "
+                            + toIndexTemplate + " in " + hit.getType() + "/"
+                            + hit.getId() + ".");
+                }
+                index = defaultToIndex;
+            } else if (!IndexNameTemplate.isValidIndexName(index)) {
+                // a value such as "a,b" or "*" would write to other indices
+                if (defaultToIndex == null) {
+                    throw new ReindexingException("Invalid index name "
+                            + index + " for " + toIndexTemplate + " in "
+                            + hit.getType() + "/" + hit.getId() + ".");
+                }
+                index = defaultToIndex;
+            }
+            toIndices.add(index);
+            return index;
+        }
+
+        private void setSource(final IndexRequest request, final SearchHit hit) {
+            if (url == null && hit instanceof InternalSearchHit
+                    && ((InternalSearchHit) hit).internalSourceRef() != null) {
+                // stored bytes, which may be compressed, are indexed as they
+                // are without parsing
+                request.source(((InternalSearchHit) hit).internalSourceRef(),
+                        false);
+            } else if (url == null) {
+                request.source(hit.getSource());
+            } else {
+                request.source(hit.sourceRef(), false);
+            }
+        }
+
+        private void serializeLater(final int size,
+                final List<IndexRequest> requests, final ReindexingBatch batch) {
+            if (requests.isEmpty()) {
+                onPageCompleted(size, batch, requests);
+                return;
             }
+            serializeStage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        batch.end(ReindexingBatch.Phase.QUEUE);
+                        serialize(size, requests, batch);
+                    } catch (final Exception e) {
+                        ReindexingListener.this.onFailure(e);
+                    }
+                }
+            });
+        }
+
+        private void serialize(final int size,
+                final List<IndexRequest> requests, final ReindexingBatch batch)
+                throws IOException {
+            sender.send(requests, batch, new ActionListener<Void>() {
+                @Override
+                public void onResponse(final Void response) {
+                    batch.endSend();
+                    onPageCompleted(size, batch, requests);
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    ReindexingListener.this.onFailure(e);
+                }
+            });
         }
 
         @Override
         public void onFailure(final Throwable e) {
+            if (finished.get()) {
+                return;
+            }
             logger.error("Failed to reindex " + toIndex + ".", e);
-            delete(name);
-            listener.onFailure(e);
+            state = "failed";
+            interrupt();
+            finish(e);
         }
 
+        @Override
         public void interrupt() {
             interrupted.set(true);
-            if (scrollId != null) {
-                client.prepareClearScroll().addScrollId(scrollId)
-                        .execute(new ActionListener<ClearScrollResponse>() {
+            scroll.clear();
+        }
 
-                            @Override
-                            public void onResponse(ClearScrollResponse response) {
-                                // nothing
-                            }
+        @Override
+        public String getName() {
+            return name;
+        }
 
-                            @Override
-                            public void onFailure(Throwable e) {
-                                if (logger.isDebugEnabled()) {
-                                    logger.debug(
-                                            "Failed to stop reindexing for "
-                                                    + toIndex + ".", e);
-                                }
-                            }
-                        });
+        @Override
+        public Map<String, Object> getStatus() {
+            final Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("index", fromIndex);
+            status.put("toindex", toIndex);
+            if (toIndexTemplate != null) {
+                status.put("toindices", toIndices.size());
             }
+            status.put("state", state);
+            status.put("total", total);
+            status.put("processed", processed.get());
+            if (sync != null) {
+                status.put("skipped", skipped.get());
+            }
+            status.put("expired", expired.get());
+            status.put("metadata", metadata.getStatus());
+            status.put("bulk", sender.getStatus());
+            status.put("scroll", scroll.getStatus());
+            status.put("timings", timings.getStatus());
+            if (loadGuard != null) {
+                status.put("load_protection", loadGuard.getStatus());
+            }
+            if (pipeline) {
+                final Map<String, Object> pipeline = new LinkedHashMap<String, Object>();
+                synchronized (this) {
+                    pipeline.put("pages_in_flight", pagesInFlight);
+                }
+                pipeline.put("transform", transformStage.getStatus());
+                pipeline.put("serialize", serializeStage.getStatus());
+                pipeline.put("send", sendStage.getStatus());
+                status.put("pipeline", pipeline);
+            }
+            return status;
         }
+    }
 
+    /**
+     * Splits a source index into ranges of a numeric or date field by its
+     * percentiles, and scans the ranges concurrently.
+     */
+    private class PartitionedReindexing implements ReindexingTask,
+            ActionListener<SearchResponse> {
+        private static final String PARTITIONS_AGGREGATION = "partitions";
+
+        private String fromIndex;
+
+        private String toIndex;
+
+        private String partitionField;
+
+        private int partitions;
+
+        private Params params;
+
+        private BytesReference content;
+
+        private ReindexingGroup reindexingGroup;
+
+        PartitionedReindexing(final String name, final String fromIndex,
+                final String toIndex, final String partitionField,
+                final int partitions, final Params params,
+                final BytesReference content,
+                final ActionListener<Void> listener) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.partitionField = partitionField;
+            this.partitions = partitions;
+            this.params = params;
+            this.content = content;
+            reindexingGroup = new ReindexingGroup(name, partitions, listener);
+        }
+
+        @Override
         public String getName() {
-            return name;
+            return reindexingGroup.getName();
+        }
+
+        @Override
+        public void start() {
+            final double[] percents = new double[partitions - 1];
+            for (int i = 0; i < percents.length; i++) {
+                percents[i] = 100.0 * (i + 1) / partitions;
+            }
+            final SearchRequestBuilder builder = client
+                    .prepareSearch(fromIndex).setSearchType(SearchType.COUNT)
+                    .setListenerThreaded(true);
+            final String fromType = params.param("type");
+            if (StringUtils.isNotBlank(fromType)) {
+                builder.setTypes(fromType.split(","));
+            }
+            final SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                    .aggregation(AggregationBuilders
+                            .percentiles(PARTITIONS_AGGREGATION)
+                            .field(partitionField).percentiles(percents));
+            if (content == null) {
+                builder.internalBuilder(sourceBuilder.query(QueryBuilders
+                        .matchAllQuery()));
+            } else {
+                builder.setSource(content);
+                builder.request().extraSource(sourceBuilder);
+            }
+            builder.execute(this);
+        }
+
+        @Override
+        public void onResponse(final SearchResponse response) {
+            final Percentiles percentiles = response.getAggregations().get(
+                    PARTITIONS_AGGREGATION);
+            final List<Double> bounds = new ArrayList<Double>();
+            for (final Percentile percentile : percentiles) {
+                final double value = percentile.getValue();
+                if (!Double.isNaN(value)
+                        && (bounds.isEmpty() || bounds.get(bounds.size() - 1) < value)) {
+                    bounds.add(value);
+                }
+            }
+
+            if (bounds.isEmpty()) {
+                addPartition(0, null);
+            } else {
+                // documents without the field are scanned in the first range
+                addPartition(
+                        0,
+                        FilterBuilders
+                                .boolFilter()
+                                .should(FilterBuilders.rangeFilter(
+                                        partitionField).lt(bounds.get(0)))
+                                .should(FilterBuilders
+                                        .missingFilter(partitionField)));
+                for (int i = 1; i < bounds.size(); i++) {
+                    addPartition(i, FilterBuilders.rangeFilter(partitionField)
+                            .gte(bounds.get(i - 1)).lt(bounds.get(i)));
+                }
+                addPartition(
+                        bounds.size(),
+                        FilterBuilders.rangeFilter(partitionField).gte(
+                                bounds.get(bounds.size() - 1)));
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Split " + fromIndex + " into "
+                        + (bounds.size() + 1) + " ranges of "
+                        + partitionField + ": " + bounds);
+            }
+            reindexingGroup.start();
+        }
+
+        private void addPartition(final int partition,
+                final FilterBuilder filter) {
+            final ReindexingMetadata metadata = ReindexingMetadata.create(
+                    clusterService.state(), fromIndex, params);
+            reindexingGroup.add(new ReindexingListener(getName() + "/"
+                    + partition, fromIndex, toIndex, params, metadata,
+                    createSearchRequestBuilder(fromIndex, params, content,
+                            metadata, filter), reindexingGroup));
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            logger.error("Failed to split " + fromIndex + " by "
+                    + partitionField + ".", e);
+            reindexingGroup.onFailure(e);
+        }
+
+        @Override
+        public void interrupt() {
+            reindexingGroup.interrupt();
+        }
+
+        @Override
+        public Map<String, Object> getStatus() {
+            final Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("index", fromIndex);
+            status.put("toindex", toIndex);
+            status.put("partition_field", partitionField);
+            status.putAll(reindexingGroup.getStatus());
+            return status;
         }
     }
 }
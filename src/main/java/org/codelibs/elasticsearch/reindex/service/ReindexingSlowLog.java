@@ -0,0 +1,93 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import org.codelibs.elasticsearch.reindex.service.ReindexingBatch.Phase;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Logs batches which took longer than the thresholds given by
+ * reindexing.slowlog.threshold.{warn,info,debug,trace}. A negative
+ * threshold disables the level.
+ */
+class ReindexingSlowLog {
+
+    private static final ESLogger logger = Loggers
+            .getLogger("reindexing.slowlog");
+
+    private static final String THRESHOLD_PREFIX = "reindexing.slowlog.threshold.";
+
+    private final long warnThreshold;
+
+    private final long infoThreshold;
+
+    private final long debugThreshold;
+
+    private final long traceThreshold;
+
+    ReindexingSlowLog(final Settings settings) {
+        warnThreshold = getThreshold(settings, "warn", "30s");
+        infoThreshold = getThreshold(settings, "info", "-1");
+        debugThreshold = getThreshold(settings, "debug", "-1");
+        traceThreshold = getThreshold(settings, "trace", "-1");
+    }
+
+    private static long getThreshold(final Settings settings,
+            final String level, final String defaultValue) {
+        return settings.getAsTime(THRESHOLD_PREFIX + level,
+                TimeValue.parseTimeValue(defaultValue, null)).nanos();
+    }
+
+    public boolean isSlow(final ReindexingBatch batch) {
+        final long time = batch.getTotalTime();
+        return exceeds(time, warnThreshold) || exceeds(time, infoThreshold)
+                || exceeds(time, debugThreshold)
+                || exceeds(time, traceThreshold);
+    }
+
+    private static boolean exceeds(final long time, final long threshold) {
+        return threshold >= 0 && time >= threshold;
+    }
+
+    /**
+     * Logs a slow batch. shards is the number of target shards, or -1 if it
+     * is unknown.
+     */
+    public void log(final String name, final String toIndex,
+            final ReindexingBatch batch, final int shards) {
+        final long time = batch.getTotalTime();
+        if (exceeds(time, warnThreshold)) {
+            logger.warn("{}", toMessage(name, toIndex, batch, shards));
+        } else if (exceeds(time, infoThreshold)) {
+            logger.info("{}", toMessage(name, toIndex, batch, shards));
+        } else if (exceeds(time, debugThreshold)) {
+            logger.debug("{}", toMessage(name, toIndex, batch, shards));
+        } else if (exceeds(time, traceThreshold)) {
+            logger.trace("{}", toMessage(name, toIndex, batch, shards));
+        }
+    }
+
+    private static String toMessage(final String name, final String toIndex,
+            final ReindexingBatch batch, final int shards) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append('[').append(name).append("][").append(toIndex)
+                .append("] took[")
+                .append(TimeValue.timeValueNanos(batch.getTotalTime()))
+                .append("], docs[").append(batch.getDocs())
+                .append("], bytes[")
+                .append(new ByteSizeValue(batch.getBytes()));
+        if (shards >= 0) {
+            buf.append("], shards[").append(shards);
+        }
+        final Phase slowest = batch.getSlowestPhase();
+        buf.append("], slowest[").append(slowest.getName()).append(']');
+        for (final Phase phase : Phase.values()) {
+            buf.append(", ").append(phase.getName()).append('[')
+                    .append(TimeValue.timeValueNanos(batch.getTime(phase)))
+                    .append(']');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of reindexing tasks running on this node.
+ */
+class ReindexingStats {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final AtomicInteger bulksInFlight = new AtomicInteger(0);
+
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+    private final AtomicLong spilledBytes = new AtomicLong(0);
+
+    private final AtomicInteger scrollContexts = new AtomicInteger(0);
+
+    private final long[] windowSeconds = new long[WINDOW_SECONDS];
+
+    private final long[] windowDocs = new long[WINDOW_SECONDS];
+
+    private long processedDocs = 0;
+
+    public synchronized void onProcessed(final int docs) {
+        final long second = System.currentTimeMillis() / 1000;
+        final int slot = (int) (second % WINDOW_SECONDS);
+        if (windowSeconds[slot] != second) {
+            windowSeconds[slot] = second;
+            windowDocs[slot] = 0;
+        }
+        windowDocs[slot] += docs;
+        processedDocs += docs;
+    }
+
+    public void onBulkStarted() {
+        bulksInFlight.incrementAndGet();
+    }
+
+    public void onBulkCompleted() {
+        bulksInFlight.decrementAndGet();
+    }
+
+    public void addBufferedBytes(final long bytes) {
+        bufferedBytes.addAndGet(bytes);
+    }
+
+    public void addSpilledBytes(final long bytes) {
+        spilledBytes.addAndGet(bytes);
+    }
+
+    public void addScrollContexts(final int contexts) {
+        scrollContexts.addAndGet(contexts);
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        final long now = System.currentTimeMillis() / 1000;
+        long docs = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (now - windowSeconds[i] < WINDOW_SECONDS) {
+                docs += windowDocs[i];
+            }
+        }
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("processed", processedDocs);
+        status.put("docs_per_second", (double) docs / WINDOW_SECONDS);
+        status.put("bulks_in_flight", bulksInFlight.get());
+        status.put("buffered_bytes", bufferedBytes.get());
+        status.put("spilled_bytes", spilledBytes.get());
+        status.put("scroll_contexts", scrollContexts.get());
+        return status;
+    }
+}
@@ -0,0 +1,508 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlException;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
+import org.codelibs.elasticsearch.runner.net.CurlRequest.ConnectionBuilder;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+
+/**
+ * Supports a sync mode, which stores a hash of _source into a field of
+ * target documents and sends only new or changed documents.
+ */
+class ReindexingSync {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingSync.class);
+
+    private final Client client;
+
+    private final String url;
+
+    private final String field;
+
+    private volatile boolean stored = false;
+
+    ReindexingSync(final Client client, final String url, final String field) {
+        this.client = client;
+        this.url = url;
+        this.field = field;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public static long hash(final BytesReference source) {
+        final byte[] bytes = source.toBytes();
+        return MurmurHash3.hash128(bytes, 0, bytes.length, 0,
+                new MurmurHash3.Hash128()).h1;
+    }
+
+    /**
+     * Maps the hash field as a stored long in the types of a local target
+     * index, creating the index if it does not exist, so that a lookup reads
+     * the stored field instead of loading _source of target documents. If
+     * the mapping cannot be changed, e.g. the field is already mapped without
+     * "store", hashes are looked up by source filtering.
+     */
+    public void prepare(final String index, final String[] types,
+            final ActionListener<Void> listener) {
+        if (url != null || types.length == 0) {
+            listener.onResponse(null);
+            return;
+        }
+        client.admin().indices().prepareExists(index)
+                .execute(new ActionListener<IndicesExistsResponse>() {
+                    @Override
+                    public void onResponse(
+                            final IndicesExistsResponse response) {
+                        if (response.isExists()) {
+                            putMapping(index, types, 0, listener);
+                        } else {
+                            createIndex(index, types, listener);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    private void createIndex(final String index, final String[] types,
+            final ActionListener<Void> listener) {
+        final CreateIndexRequestBuilder builder = client.admin().indices()
+                .prepareCreate(index);
+        try {
+            for (final String type : types) {
+                builder.addMapping(type, buildMapping(type));
+            }
+        } catch (final IOException e) {
+            listener.onFailure(e);
+            return;
+        }
+        builder.execute(new ActionListener<CreateIndexResponse>() {
+            @Override
+            public void onResponse(final CreateIndexResponse response) {
+                stored = true;
+                listener.onResponse(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                    putMapping(index, types, 0, listener);
+                } else {
+                    listener.onFailure(e);
+                }
+            }
+        });
+    }
+
+    private void putMapping(final String index, final String[] types,
+            final int pos, final ActionListener<Void> listener) {
+        if (pos >= types.length) {
+            stored = true;
+            listener.onResponse(null);
+            return;
+        }
+        try {
+            client.admin().indices().preparePutMapping(index)
+                    .setType(types[pos]).setSource(buildMapping(types[pos]))
+                    .execute(new ActionListener<PutMappingResponse>() {
+                        @Override
+                        public void onResponse(
+                                final PutMappingResponse response) {
+                            putMapping(index, types, pos + 1, listener);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            logger.warn("Failed to store " + field + " in "
+                                    + index + "/" + types[pos]
+                                    + ". Hashes are looked up from _source.",
+                                    e);
+                            listener.onResponse(null);
+                        }
+                    });
+        } catch (final IOException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private XContentBuilder buildMapping(final String type)
+            throws IOException {
+        return JsonXContent.contentBuilder().startObject().startObject(type)
+                .startObject("properties").startObject(field)
+                .field("type", "long").field("store", true).endObject()
+                .endObject().endObject().endObject();
+    }
+
+    /**
+     * Gets stored hashes of target documents. An element of the result is
+     * null if the document does not exist.
+     */
+    public void lookup(final List<IndexRequest> requests,
+            final ActionListener<Long[]> listener) {
+        if (requests.isEmpty()) {
+            listener.onResponse(new Long[0]);
+        } else if (url == null) {
+            lookupLocal(requests, listener);
+        } else {
+            lookupRemote(requests, listener);
+        }
+    }
+
+    private void lookupLocal(final List<IndexRequest> requests,
+            final ActionListener<Long[]> listener) {
+        final MultiGetRequestBuilder builder = client.prepareMultiGet()
+                .setRealtime(true);
+        for (final IndexRequest request : requests) {
+            final MultiGetRequest.Item item = new MultiGetRequest.Item(
+                    request.index(), request.type(), request.id())
+                    .routing(request.routing());
+            if (stored) {
+                item.fields(field);
+            } else {
+                item.fetchSourceContext(new FetchSourceContext(
+                        new String[] { field }, null));
+            }
+            builder.add(item);
+        }
+        builder.execute(new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(final MultiGetResponse response) {
+                final MultiGetItemResponse[] items = response.getResponses();
+                final Long[] hashes = new Long[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    if (!items[i].isFailed() && items[i].getResponse().isExists()) {
+                        final Object value;
+                        if (stored) {
+                            final GetField getField = items[i].getResponse()
+                                    .getField(field);
+                            value = getField != null ? getField.getValue()
+                                    : null;
+                        } else {
+                            value = items[i].getResponse().isSourceEmpty() ? null
+                                    : items[i].getResponse().getSourceAsMap()
+                                            .get(field);
+                        }
+                        if (value instanceof Number) {
+                            hashes[i] = ((Number) value).longValue();
+                        }
+                    }
+                }
+                listener.onResponse(hashes);
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void lookupRemote(final List<IndexRequest> requests,
+            final ActionListener<Long[]> listener) {
+        try {
+            final XContentBuilder builder = JsonXContent.contentBuilder();
+            builder.startObject().startArray("docs");
+            for (final IndexRequest request : requests) {
+                builder.startObject();
+                builder.field("_index", request.index());
+                builder.field("_type", request.type());
+                builder.field("_id", request.id());
+                if (request.routing() != null) {
+                    builder.field("_routing", request.routing());
+                }
+                builder.array("fields", field);
+                builder.endObject();
+            }
+            builder.endArray().endObject();
+            final BytesReference content = builder.bytes();
+
+            Curl.post(url + "_mget").onConnect(new ConnectionBuilder() {
+                @Override
+                public void onConnect(final CurlRequest curlRequest,
+                        final HttpURLConnection connection) {
+                    connection.setDoOutput(true);
+                    try (OutputStream out = connection.getOutputStream()) {
+                        content.writeTo(out);
+                        out.flush();
+                    } catch (final IOException e) {
+                        throw new ReindexingException("Failed to send "
+                                + url + "_mget", e);
+                    }
+                }
+            }).execute(new Curl.ResponseListener() {
+                @Override
+                public void onResponse(final HttpURLConnection con) {
+                    try (InputStream in = con.getInputStream();
+                            XContentParser parser = JsonXContent.jsonXContent
+                                    .createParser(in)) {
+                        listener.onResponse(parseRemoteHashes(parser.map(),
+                                requests.size()));
+                    } catch (final Exception e) {
+                        listener.onFailure(e);
+                    }
+                }
+            });
+        } catch (final IOException | CurlException | ReindexingException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Long[] parseRemoteHashes(final Map<String, Object> response,
+            final int size) {
+        final Long[] hashes = new Long[size];
+        final List<Object> docs = (List<Object>) response.get("docs");
+        if (docs == null || docs.size() != size) {
+            throw new ReindexingException("Invalid response from " + url
+                    + "_mget");
+        }
+        for (int i = 0; i < size; i++) {
+            final Map<String, Object> doc = (Map<String, Object>) docs.get(i);
+            if (!Boolean.TRUE.equals(doc.get("found"))) {
+                continue;
+            }
+            final Map<String, Object> fields = (Map<String, Object>) doc
+                    .get("fields");
+            if (fields == null) {
+                continue;
+            }
+            Object value = fields.get(field);
+            if (value instanceof List && !((List<Object>) value).isEmpty()) {
+                value = ((List<Object>) value).get(0);
+            }
+            if (value instanceof Number) {
+                hashes[i] = ((Number) value).longValue();
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Deletes documents in the target index which do not exist in the
+     * source index.
+     */
+    public void deleteRemoved(final String fromIndex, final String[] fromTypes,
+            final String toIndex, final String[] toTypes,
+            final boolean sameTypes, final ReindexingScroll scroll,
+            final int size, final ActionListener<Long> listener) {
+        if (url != null) {
+            listener.onFailure(new ReindexingException(
+                    "sync_delete is not supported for a remote cluster."));
+            return;
+        }
+        new DeleteListener(fromIndex, fromTypes, toIndex, toTypes, sameTypes,
+                scroll, size, listener).start();
+    }
+
+    private class DeleteListener implements ActionListener<SearchResponse> {
+        private final AtomicBoolean initialized = new AtomicBoolean(false);
+
+        private final AtomicLong deleted = new AtomicLong(0);
+
+        private final String fromIndex;
+
+        private final String[] fromTypes;
+
+        private final String toIndex;
+
+        private final String[] toTypes;
+
+        private final boolean sameTypes;
+
+        private final ReindexingScroll scroll;
+
+        private final int size;
+
+        private final ActionListener<Long> listener;
+
+        DeleteListener(final String fromIndex, final String[] fromTypes,
+                final String toIndex, final String[] toTypes,
+                final boolean sameTypes, final ReindexingScroll scroll,
+                final int size, final ActionListener<Long> listener) {
+            this.fromIndex = fromIndex;
+            this.fromTypes = fromTypes;
+            this.toIndex = toIndex;
+            this.toTypes = toTypes;
+            this.sameTypes = sameTypes;
+            this.scroll = scroll;
+            this.size = size;
+            this.listener = listener;
+        }
+
+        void start() {
+            final SearchRequestBuilder builder = client.prepareSearch(toIndex)
+                    .setSearchType(SearchType.SCAN)
+                    .setScroll(scroll.getInitialKeepAlive())
+                    .setQuery(QueryBuilders.matchAllQuery()).setSize(size)
+                    .addFields("_parent", "_routing")
+                    .setListenerThreaded(true);
+            if (toTypes.length > 0) {
+                builder.setTypes(toTypes);
+            }
+            builder.execute(this);
+        }
+
+        @Override
+        public void onResponse(final SearchResponse response) {
+            scroll.onResponse(response);
+            if (initialized.compareAndSet(false, true)) {
+                nextPage();
+                return;
+            }
+
+            final SearchHit[] hits = response.getHits().getHits();
+            if (hits.length == 0) {
+                scroll.clear();
+                listener.onResponse(deleted.get());
+                return;
+            }
+
+            final String[] ids = new String[hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                ids[i] = hits[i].getId();
+            }
+            findSourceHits(hits, ids, ids.length * Math.max(1, fromTypes.length));
+        }
+
+        /**
+         * Searches source documents with the ids of target documents. An id
+         * may exist in more than one source type, so the search is repeated
+         * with the number of matched documents if some of them are not
+         * returned.
+         */
+        private void findSourceHits(final SearchHit[] targetHits,
+                final String[] ids, final int size) {
+            client.prepareSearch(fromIndex).setTypes(fromTypes)
+                    .setQuery(QueryBuilders.idsQuery().ids(ids))
+                    .setSize(size).setNoFields()
+                    .execute(new ActionListener<SearchResponse>() {
+                        @Override
+                        public void onResponse(final SearchResponse response) {
+                            final SearchHits sourceHits = response.getHits();
+                            if (sourceHits.getTotalHits() > sourceHits
+                                    .getHits().length) {
+                                findSourceHits(targetHits, ids,
+                                        (int) sourceHits.getTotalHits());
+                                return;
+                            }
+                            deleteDocuments(targetHits, sourceHits.getHits());
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable e) {
+                            DeleteListener.this.onFailure(e);
+                        }
+                    });
+        }
+
+        private void deleteDocuments(final SearchHit[] targetHits,
+                final SearchHit[] sourceHits) {
+            final Set<String> keys = new HashSet<String>();
+            for (final SearchHit hit : sourceHits) {
+                keys.add(getKey(hit));
+            }
+            final BulkRequest bulkRequest = new BulkRequest();
+            for (final SearchHit hit : targetHits) {
+                if (keys.contains(getKey(hit))) {
+                    continue;
+                }
+                final DeleteRequest request = new DeleteRequest(toIndex,
+                        hit.getType(), hit.getId());
+                final SearchHitField routingField = hit.field("_routing");
+                final SearchHitField parentField = hit.field("_parent");
+                if (routingField != null) {
+                    request.routing((String) routingField.getValue());
+                } else if (parentField != null) {
+                    request.parent((String) parentField.getValue());
+                }
+                bulkRequest.add(request);
+            }
+            if (bulkRequest.numberOfActions() == 0) {
+                nextPage();
+                return;
+            }
+            client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(final BulkResponse response) {
+                    if (response.hasFailures()) {
+                        onFailure(new ReindexingException(response
+                                .buildFailureMessage()));
+                        return;
+                    }
+                    deleted.addAndGet(response.getItems().length);
+                    nextPage();
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    DeleteListener.this.onFailure(e);
+                }
+            });
+        }
+
+        private String getKey(final SearchHit hit) {
+            return sameTypes ? hit.getType() + "#" + hit.getId() : hit
+                    .getId();
+        }
+
+        private void nextPage() {
+            scroll.next(this);
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            scroll.clear();
+            listener.onFailure(e);
+        }
+    }
+}
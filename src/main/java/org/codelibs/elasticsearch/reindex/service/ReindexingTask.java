@@ -0,0 +1,14 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.Map;
+
+interface ReindexingTask {
+
+    String getName();
+
+    void start();
+
+    void interrupt();
+
+    Map<String, Object> getStatus();
+}
@@ -0,0 +1,79 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.reindex.service.ReindexingBatch.Phase;
+
+/**
+ * Rolling histograms of the times of the last batches, per phase and in
+ * total.
+ */
+class ReindexingTimings {
+
+    private static final int WINDOW_SIZE = 1000;
+
+    private static final int TOTAL = Phase.values().length;
+
+    private final long[][] samples = new long[TOTAL + 1][WINDOW_SIZE];
+
+    private long batches = 0;
+
+    private long slowBatches = 0;
+
+    public synchronized void add(final ReindexingBatch batch,
+            final boolean slow) {
+        final int slot = (int) (batches % WINDOW_SIZE);
+        for (final Phase phase : Phase.values()) {
+            samples[phase.ordinal()][slot] = batch.getTime(phase);
+        }
+        samples[TOTAL][slot] = batch.getTotalTime();
+        batches++;
+        if (slow) {
+            slowBatches++;
+        }
+    }
+
+    public synchronized Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("batches", batches);
+        status.put("slow_batches", slowBatches);
+        final int size = (int) Math.min(batches, WINDOW_SIZE);
+        if (size == 0) {
+            return status;
+        }
+        for (final Phase phase : Phase.values()) {
+            status.put(phase.getName(),
+                    getHistogram(samples[phase.ordinal()], size));
+        }
+        status.put("total", getHistogram(samples[TOTAL], size));
+        return status;
+    }
+
+    private static Map<String, Object> getHistogram(final long[] values,
+            final int size) {
+        final long[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (final long value : sorted) {
+            sum += value;
+        }
+        final Map<String, Object> histogram = new LinkedHashMap<String, Object>();
+        histogram.put("avg_millis", toMillis(sum / size));
+        histogram.put("p50_millis", toMillis(percentile(sorted, 50)));
+        histogram.put("p90_millis", toMillis(percentile(sorted, 90)));
+        histogram.put("p99_millis", toMillis(percentile(sorted, 99)));
+        histogram.put("max_millis", toMillis(sorted[size - 1]));
+        return histogram;
+    }
+
+    private static long percentile(final long[] sorted, final int percent) {
+        final int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    static double toMillis(final long nanos) {
+        return nanos / 1000 / 1000.0;
+    }
+}
@@ -0,0 +1,526 @@
+package org.codelibs.elasticsearch.reindex.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.codelibs.elasticsearch.reindex.exception.ReindexingException;
+import org.codelibs.elasticsearch.util.lang.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent.Params;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Compares a source index with a reindexed index.
+ *
+ * Documents are put into buckets by their ids, and each bucket has the sum
+ * of hashes of _id and _source, which does not depend on the scan order.
+ * Both indices are scanned by per-shard slices concurrently, and only
+ * documents in mismatched buckets are compared by their types and ids in the
+ * second scan. The buckets compared are limited to "max_compare_docs"
+ * documents in total, so that the memory for the comparison is bounded. If
+ * the target index maps "sync_field" of a sync mode, the field is removed
+ * from _source before hashing.
+ */
+class ReindexingVerifier implements ReindexingTask {
+
+    private static final ESLogger logger = Loggers
+            .getLogger(ReindexingVerifier.class);
+
+    private static final int SOURCE = 0;
+
+    private static final int TARGET = 1;
+
+    private final Client client;
+
+    private final String name;
+
+    private final String[] indices;
+
+    private final String[][] types;
+
+    private final int[] slices;
+
+    private final int buckets;
+
+    private final boolean canonical;
+
+    private final String syncField;
+
+    private final int maxConcurrent;
+
+    private final int size;
+
+    private final ReindexingScroll scroll;
+
+    private final int maxIds;
+
+    private final long maxCompareDocs;
+
+    private final String toType;
+
+    private final ActionListener<Map<String, Object>> listener;
+
+    private final AtomicLongArray[] checksums = new AtomicLongArray[2];
+
+    private final AtomicLongArray[] counts = new AtomicLongArray[2];
+
+    private final List<Map<String, Long>> hashMaps = new ArrayList<Map<String, Long>>(
+            2);
+
+    private final AtomicLong scanned = new AtomicLong(0);
+
+    private volatile BitSet mismatchedBuckets;
+
+    private volatile ReindexingGroup reindexingGroup;
+
+    private final List<ReindexingScroll> sliceScrolls = new CopyOnWriteArrayList<ReindexingScroll>();
+
+    private volatile boolean interrupted = false;
+
+    private volatile String phase = "pending";
+
+    ReindexingVerifier(final String name, final Client client,
+            final ClusterState state, final Params params,
+            final ReindexingScroll scroll,
+            final ActionListener<Map<String, Object>> listener) {
+        this.client = client;
+        this.scroll = scroll;
+        this.name = name;
+        this.listener = listener;
+        indices = new String[] { params.param("index"),
+                params.param("toindex") };
+        if (indices[TARGET] == null) {
+            throw new ReindexingException("toindex is blank.");
+        }
+        final String fromType = params.param("type");
+        toType = params.param("totype");
+        final String targetType = toType != null ? toType : fromType;
+        types = new String[][] {
+                StringUtils.isNotBlank(fromType) ? fromType.split(",")
+                        : new String[0],
+                StringUtils.isNotBlank(targetType) ? targetType.split(",")
+                        : new String[0] };
+        slices = new int[] { getNumberOfShards(state, indices[SOURCE]),
+                getNumberOfShards(state, indices[TARGET]) };
+        buckets = Integer.parseInt(params.param("buckets", "1024"));
+        if (buckets < 1) {
+            throw new ReindexingException("buckets should be positive.");
+        }
+        canonical = params.paramAsBoolean("canonical", false);
+        syncField = getSyncField(state, indices[TARGET],
+                params.param("sync_field", "reindex_hash"));
+        maxConcurrent = Integer.parseInt(params.param("max_concurrent", "4"));
+        size = Integer.parseInt(params.param("size", "1000"));
+        maxIds = Integer.parseInt(params.param("max_ids", "100"));
+        maxCompareDocs = Long.parseLong(params.param("max_compare_docs",
+                "100000"));
+        if (maxCompareDocs < 1) {
+            throw new ReindexingException(
+                    "max_compare_docs should be positive.");
+        }
+        for (int i = 0; i < 2; i++) {
+            checksums[i] = new AtomicLongArray(buckets);
+            counts[i] = new AtomicLongArray(buckets);
+            hashMaps.add(new ConcurrentHashMap<String, Long>());
+        }
+    }
+
+    static int getNumberOfShards(final ClusterState state,
+            final String index) {
+        int numberOfShards = 1;
+        for (final String concreteIndex : state.metaData().concreteIndices(
+                IndicesOptions.strictExpandOpen(), index)) {
+            numberOfShards = Math.max(numberOfShards, state.metaData()
+                    .index(concreteIndex).numberOfShards());
+        }
+        return numberOfShards;
+    }
+
+    /**
+     * Returns field if it is mapped in index, or null.
+     */
+    static String getSyncField(final ClusterState state, final String index,
+            final String field) {
+        for (final String concreteIndex : state.metaData().concreteIndices(
+                IndicesOptions.lenientExpandOpen(), index)) {
+            for (final ObjectCursor<MappingMetaData> cursor : state
+                    .metaData().index(concreteIndex).mappings().values()) {
+                final Map<String, Object> mapping;
+                try {
+                    mapping = cursor.value.sourceAsMap();
+                } catch (final IOException e) {
+                    throw new ReindexingException(
+                            "Failed to parse a mapping of "
+                                    + cursor.value.type(), e);
+                }
+                if (XContentMapValues.extractValue("properties." + field,
+                        mapping) != null) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void start() {
+        phase = "checksum";
+        startScan(new ActionListener<Void>() {
+            @Override
+            public void onResponse(final Void response) {
+                final BitSet bitSet = new BitSet(buckets);
+                final BitSet comparedBitSet = new BitSet(buckets);
+                long compareDocs = 0;
+                for (int i = 0; i < buckets; i++) {
+                    if (checksums[SOURCE].get(i) != checksums[TARGET].get(i)
+                            || counts[SOURCE].get(i) != counts[TARGET].get(i)) {
+                        bitSet.set(i);
+                        // the documents of a bucket are known by the first
+                        // scan
+                        final long docs = counts[SOURCE].get(i)
+                                + counts[TARGET].get(i);
+                        if (compareDocs + docs <= maxCompareDocs) {
+                            compareDocs += docs;
+                            comparedBitSet.set(i);
+                        }
+                    }
+                }
+                if (bitSet.isEmpty()) {
+                    phase = "completed";
+                    listener.onResponse(buildResult(0, 0, null));
+                    return;
+                }
+                if (comparedBitSet.isEmpty()) {
+                    phase = "completed";
+                    listener.onResponse(buildResult(bitSet.cardinality(), 0,
+                            null));
+                    return;
+                }
+
+                mismatchedBuckets = comparedBitSet;
+                phase = "compare";
+                startScan(new ActionListener<Void>() {
+                    @Override
+                    public void onResponse(final Void response) {
+                        phase = "completed";
+                        listener.onResponse(buildResult(
+                                bitSet.cardinality(),
+                                comparedBitSet.cardinality(),
+                                compareHashMaps()));
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable e) {
+                        phase = "failed";
+                        listener.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                phase = "failed";
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void startScan(final ActionListener<Void> scanListener) {
+        final ReindexingGroup group = new ReindexingGroup(name, maxConcurrent,
+                scanListener);
+        for (int side = 0; side < 2; side++) {
+            for (int shard = 0; shard < slices[side]; shard++) {
+                group.add(new SliceListener(side, shard));
+            }
+        }
+        reindexingGroup = group;
+        if (interrupted) {
+            group.interrupt();
+        } else {
+            group.start();
+        }
+    }
+
+    private Map<String, List<String>> compareHashMaps() {
+        final Map<String, Long> sourceMap = hashMaps.get(SOURCE);
+        final Map<String, Long> targetMap = hashMaps.get(TARGET);
+        final List<String> missingIds = new ArrayList<String>();
+        final List<String> extraIds = new ArrayList<String>();
+        final List<String> differentIds = new ArrayList<String>();
+        for (final Map.Entry<String, Long> entry : sourceMap.entrySet()) {
+            final Long hash = targetMap.get(entry.getKey());
+            if (hash == null) {
+                addId(missingIds, entry.getKey());
+            } else if (!hash.equals(entry.getValue())) {
+                addId(differentIds, entry.getKey());
+            }
+        }
+        for (final String id : targetMap.keySet()) {
+            if (!sourceMap.containsKey(id)) {
+                addId(extraIds, id);
+            }
+        }
+        final Map<String, List<String>> ids = new LinkedHashMap<String, List<String>>();
+        ids.put("missing_ids", missingIds);
+        ids.put("extra_ids", extraIds);
+        ids.put("different_ids", differentIds);
+        return ids;
+    }
+
+    private void addId(final List<String> ids, final String id) {
+        if (ids.size() < maxIds) {
+            ids.add(id);
+        }
+    }
+
+    private Map<String, Object> buildResult(final int mismatched,
+            final int compared, final Map<String, List<String>> ids) {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("index", indices[SOURCE]);
+        result.put("toindex", indices[TARGET]);
+        result.put("matched", mismatched == 0);
+        result.put("source_docs", sum(counts[SOURCE]));
+        result.put("target_docs", sum(counts[TARGET]));
+        result.put("buckets", buckets);
+        result.put("mismatched_buckets", mismatched);
+        if (mismatched > 0) {
+            // ids are listed only for the buckets compared
+            result.put("compared_buckets", compared);
+            result.put("truncated", compared < mismatched);
+        }
+        if (ids != null) {
+            result.putAll(ids);
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Verified " + indices[TARGET] + " with "
+                    + indices[SOURCE] + ": " + result);
+        }
+        return result;
+    }
+
+    private static long sum(final AtomicLongArray array) {
+        long total = 0;
+        for (int i = 0; i < array.length(); i++) {
+            total += array.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted = true;
+        final ReindexingGroup group = reindexingGroup;
+        if (group != null) {
+            group.interrupt();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("index", indices[SOURCE]);
+        status.put("toindex", indices[TARGET]);
+        status.put("phase", phase);
+        status.put("scanned", scanned.get());
+        int scrollContexts = 0;
+        for (final ReindexingScroll sliceScroll : sliceScrolls) {
+            scrollContexts += sliceScroll.getContexts();
+        }
+        status.put("scroll_contexts", scrollContexts);
+        return status;
+    }
+
+    private long hash(final byte[] bytes, final long seed) {
+        final MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0,
+                bytes.length, seed, new MurmurHash3.Hash128());
+        return hash.h1 ^ hash.h2;
+    }
+
+    private long hashSource(final SearchHit hit) {
+        if (hit.isSourceEmpty()) {
+            return 0;
+        }
+        // the sync field exists only in the target, and the rest of
+        // _source is serialized again after removing it
+        if (canonical || syncField != null) {
+            Map<String, Object> source = hit.sourceAsMap();
+            if (syncField != null && source.containsKey(syncField)) {
+                source = new HashMap<String, Object>(source);
+                source.remove(syncField);
+            }
+            try {
+                final XContentBuilder builder = JsonXContent.contentBuilder()
+                        .value(toSorted(source));
+                return hash(builder.bytes().toBytes(), 0);
+            } catch (final IOException e) {
+                throw new ReindexingException("Failed to serialize "
+                        + hit.getType() + "/" + hit.getId() + ".", e);
+            }
+        }
+        return hash(hit.sourceRef().toBytes(), 0);
+    }
+
+    /**
+     * Returns a copy of a parsed source whose objects have sorted keys, and
+     * which is serialized with its quoting and value types.
+     */
+    @SuppressWarnings("unchecked")
+    static Object toSorted(final Object value) {
+        if (value instanceof Map) {
+            final Map<String, Object> map = new TreeMap<String, Object>();
+            for (final Map.Entry<String, Object> entry : ((Map<String, Object>) value)
+                    .entrySet()) {
+                map.put(entry.getKey(), toSorted(entry.getValue()));
+            }
+            return map;
+        } else if (value instanceof List) {
+            final List<Object> list = new ArrayList<Object>();
+            for (final Object element : (List<Object>) value) {
+                list.add(toSorted(element));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a key of a hit, which is its type and id. A source document is
+     * keyed by "totype" if it is given.
+     */
+    private String getKey(final int side, final SearchHit hit) {
+        final String type = side == SOURCE && toType != null ? toType : hit
+                .getType();
+        return type + "#" + hit.getId();
+    }
+
+    private class SliceListener implements ReindexingTask,
+            ActionListener<SearchResponse> {
+        private final int side;
+
+        private final int shard;
+
+        private final AtomicBoolean initialized = new AtomicBoolean(false);
+
+        private ActionListener<Void> groupListener;
+
+        private final ReindexingScroll sliceScroll = scroll.newScroll();
+
+        private volatile boolean stopped = false;
+
+        SliceListener(final int side, final int shard) {
+            this.side = side;
+            this.shard = shard;
+            sliceScrolls.add(sliceScroll);
+        }
+
+        @Override
+        public String getName() {
+            return name + "/" + indices[side] + "/" + shard;
+        }
+
+        @Override
+        public void start() {
+            groupListener = reindexingGroup;
+            final SearchRequestBuilder builder = client
+                    .prepareSearch(indices[side])
+                    .setSearchType(SearchType.SCAN)
+                    .setScroll(sliceScroll.getInitialKeepAlive())
+                    .setPreference("_shards:" + shard)
+                    .setQuery(QueryBuilders.matchAllQuery()).setSize(size)
+                    .setFetchSource(true).setListenerThreaded(true);
+            if (types[side].length > 0) {
+                builder.setTypes(types[side]);
+            }
+            builder.execute(this);
+        }
+
+        @Override
+        public void onResponse(final SearchResponse response) {
+            sliceScroll.onResponse(response);
+            if (stopped) {
+                groupListener.onFailure(new ReindexingException(
+                        "Interrupted."));
+                return;
+            }
+
+            if (initialized.compareAndSet(false, true)) {
+                sliceScroll.next(this);
+                return;
+            }
+
+            final SearchHit[] hits = response.getHits().getHits();
+            if (hits.length == 0) {
+                sliceScroll.clear();
+                groupListener.onResponse(null);
+                return;
+            }
+
+            final BitSet bitSet = mismatchedBuckets;
+            for (final SearchHit hit : hits) {
+                final String key = getKey(side, hit);
+                final byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+                final int bucket = (int) ((hash(keyBytes, 0) & Long.MAX_VALUE) % buckets);
+                if (bitSet == null) {
+                    checksums[side].addAndGet(bucket,
+                            hash(keyBytes, hashSource(hit)));
+                    counts[side].incrementAndGet(bucket);
+                } else if (bitSet.get(bucket)) {
+                    hashMaps.get(side).put(key,
+                            hash(keyBytes, hashSource(hit)));
+                }
+            }
+            scanned.addAndGet(hits.length);
+            sliceScroll.next(this);
+        }
+
+        @Override
+        public void onFailure(final Throwable e) {
+            logger.error("Failed to scan " + indices[side] + ".", e);
+            interrupt();
+            groupListener.onFailure(e);
+        }
+
+        @Override
+        public void interrupt() {
+            stopped = true;
+            sliceScroll.clear();
+        }
+
+        @Override
+        public Map<String, Object> getStatus() {
+            return new LinkedHashMap<String, Object>();
+        }
+    }
+}
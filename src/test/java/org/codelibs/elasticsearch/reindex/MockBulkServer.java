@@ -0,0 +1,285 @@
+package org.codelibs.elasticsearch.reindex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.common.xcontent.smile.SmileXContent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP server which accepts _bulk requests in place of a remote cluster.
+ * Latency, bandwidth, failed requests and rejected items are configurable,
+ * so that the remote path can be tested under adverse conditions on a single
+ * machine. Documents are counted, not stored.
+ */
+public class MockBulkServer implements Closeable {
+
+    private final Random random = new Random();
+
+    private final AtomicLong requests = new AtomicLong(0);
+
+    private final AtomicLong failedRequests = new AtomicLong(0);
+
+    private final AtomicLong items = new AtomicLong(0);
+
+    private final AtomicLong rejectedItems = new AtomicLong(0);
+
+    private final AtomicLong receivedBytes = new AtomicLong(0);
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private volatile long minLatency = 0;
+
+    private volatile long maxLatency = 0;
+
+    private volatile long bytesPerSecond = 0;
+
+    private volatile double errorRate = 0;
+
+    private volatile int errorStatus = 429;
+
+    private volatile double rejectionRate = 0;
+
+    public MockBulkServer() throws IOException {
+        this(0);
+    }
+
+    public MockBulkServer(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port),
+                0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Returns a url to be given as "url" of reindexing.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Delays each response by a random time between min and max
+     * milliseconds.
+     */
+    public MockBulkServer latency(final long min, final long max) {
+        minLatency = min;
+        maxLatency = Math.max(min, max);
+        return this;
+    }
+
+    /**
+     * Limits the speed to read a request body. 0 means unlimited.
+     */
+    public MockBulkServer bandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Fails the given ratio of bulk requests with the status code.
+     */
+    public MockBulkServer errorRate(final double rate, final int status) {
+        errorRate = rate;
+        errorStatus = status;
+        return this;
+    }
+
+    /**
+     * Rejects the given ratio of items in successful bulk requests, as a
+     * remote cluster with a full bulk queue does.
+     */
+    public MockBulkServer rejectionRate(final double rate) {
+        rejectionRate = rate;
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    /**
+     * Returns the number of accepted items.
+     */
+    public long getItems() {
+        return items.get();
+    }
+
+    public long getRejectedItems() {
+        return rejectedItems.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleRequest(final HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())
+                || !exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+            sendError(exchange, 404, "No handler for "
+                    + exchange.getRequestURI());
+            return;
+        }
+        requests.incrementAndGet();
+        final byte[] body = readBody(exchange.getRequestBody());
+        receivedBytes.addAndGet(body.length);
+        sleep(nextLatency());
+        if (nextDouble() < errorRate) {
+            failedRequests.incrementAndGet();
+            sendError(exchange, errorStatus,
+                    "EsRejectedExecutionException[rejected execution]");
+            return;
+        }
+
+        final String contentType = exchange.getRequestHeaders().getFirst(
+                "Content-Type");
+        final XContentType xContentType = contentType != null
+                && contentType.contains("smile") ? XContentType.SMILE
+                : XContentType.JSON;
+        final byte separator = xContentType == XContentType.SMILE ? SmileXContent.smileXContent
+                .streamSeparator() : JsonXContent.jsonXContent
+                .streamSeparator();
+
+        final XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject().field("took", 1);
+        builder.startArray("items");
+        boolean errors = false;
+        boolean source = false;
+        int from = 0;
+        while (from < body.length) {
+            int to = from;
+            while (to < body.length && body[to] != separator) {
+                to++;
+            }
+            if (source) {
+                source = false;
+            } else if (to > from) {
+                final Map<String, Object> action = XContentHelper
+                        .convertToMap(body, from, to - from, false).v2();
+                final String op = action.keySet().iterator().next();
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> meta = (Map<String, Object>) action
+                        .get(op);
+                source = !"delete".equals(op);
+                builder.startObject().startObject(op);
+                builder.field("_index", meta.get("_index"));
+                builder.field("_type", meta.get("_type"));
+                builder.field("_id", meta.get("_id"));
+                if (nextDouble() < rejectionRate) {
+                    errors = true;
+                    rejectedItems.incrementAndGet();
+                    builder.field("status", 429);
+                    builder.field("error",
+                            "EsRejectedExecutionException[rejected execution (queue capacity 50)]");
+                } else {
+                    items.incrementAndGet();
+                    builder.field("_version", 1);
+                    builder.field("status", 201);
+                }
+                builder.endObject().endObject();
+            }
+            from = to + 1;
+        }
+        builder.endArray();
+        builder.field("errors", errors);
+        builder.endObject();
+        sendResponse(exchange, 200, builder);
+    }
+
+    private byte[] readBody(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        final long startTime = System.nanoTime();
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            final long limit = bytesPerSecond;
+            if (limit > 0) {
+                // waits until the bytes read fit in the bandwidth
+                final long expected = out.size() * 1000L / limit;
+                sleep(expected - (System.nanoTime() - startTime) / 1000000);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private long nextLatency() {
+        final long min = minLatency;
+        final long max = maxLatency;
+        return min + (long) (nextDouble() * (max - min));
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendError(final HttpExchange exchange,
+            final int status, final String message) throws IOException {
+        final XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject().field("error", message).field("status", status)
+                .endObject();
+        sendResponse(exchange, status, builder);
+    }
+
+    private static void sendResponse(final HttpExchange exchange,
+            final int status, final XContentBuilder builder)
+            throws IOException {
+        final byte[] content = builder.bytes().toBytes();
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+}
@@ -1,17 +1,25 @@
 package org.codelibs.elasticsearch.reindex;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import junit.framework.TestCase;
 import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
 import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
 import org.codelibs.elasticsearch.runner.net.Curl;
+import org.codelibs.elasticsearch.runner.net.CurlRequest;
 import org.codelibs.elasticsearch.runner.net.CurlResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.FileSystemUtils;
 import org.elasticsearch.common.settings.ImmutableSettings.Builder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.node.Node;
 
@@ -19,8 +27,11 @@ public class ReindexingPluginTest extends TestCase {
 
     private ElasticsearchClusterRunner runner;
 
+    private File dumpDir;
+
     @Override
     protected void setUp() throws Exception {
+        dumpDir = Files.createTempDirectory("reindexing-dump").toFile();
         // create runner instance
         runner = new ElasticsearchClusterRunner();
         // create ES nodes
@@ -29,6 +40,11 @@ public class ReindexingPluginTest extends TestCase {
             public void build(final int number, final Builder settingsBuilder) {
                 settingsBuilder.put("http.cors.enabled", true);
                 settingsBuilder.put("index.number_of_replicas", 0);
+                settingsBuilder.put("reindexing.dump.path",
+                        dumpDir.getAbsolutePath());
+                // every batch is written to the slow log at trace level
+                settingsBuilder.put("reindexing.slowlog.threshold.trace",
+                        "0ms");
             }
         }).build(newConfigs().ramIndexStore().numOfNode(1));
 
@@ -42,6 +58,7 @@ public class ReindexingPluginTest extends TestCase {
         runner.close();
         // delete all files
         runner.clean();
+        FileSystemUtils.deleteRecursively(dumpDir);
     }
 
     public void test_reindexing() throws Exception {
@@ -59,10 +76,12 @@ public class ReindexingPluginTest extends TestCase {
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.DAY_OF_MONTH, -10);
         SimpleDateFormat sdf = new SimpleDateFormat("YYYY.MM.dd");
+        String[] logstashIndices = new String[10];
 
         for (int i = 0; i < 10; i++) {
             Date d = cal.getTime();
             String logstashIndex = logstashIndexPrefix + sdf.format(d);
+            logstashIndices[i] = logstashIndex;
             runner.createIndex(logstashIndex, null);
 
             // create 500 documents
@@ -114,6 +133,39 @@ public class ReindexingPluginTest extends TestCase {
         runner.ensureGreen();
         test_index_to_newIndex(node, index, type);
 
+        runner.ensureGreen();
+        test_index_to_newIndex_scroll(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_dryRun(node, index, type, null);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_dryRun(node, index, type,
+                "http://localhost:" + node.settings().get("http.port"));
+
+        runner.ensureGreen();
+        test_index_to_newIndex_bulkGrouping(node, index, type, "shard");
+
+        runner.ensureGreen();
+        test_index_to_newIndex_bulkGrouping(node, index, type, "node");
+
+        runner.ensureGreen();
+        test_index_to_newIndex_pipeline(node, index, type, null);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_pipeline(node, index, type,
+                "http://localhost:" + node.settings().get("http.port"));
+
+        runner.ensureGreen();
+        test_index_to_newIndex_loadProtection(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_bulkSize(node, index, type, null);
+
+        runner.ensureGreen();
+        test_index_to_newIndex_bulkSize(node, index, type,
+                "http://localhost:" + node.settings().get("http.port"));
+
         runner.ensureGreen();
         test_index_type_to_remote_newIndex_newType(node, index, type);
 
@@ -122,13 +174,237 @@ public class ReindexingPluginTest extends TestCase {
 
         runner.ensureGreen();
         test_index_to_remote_newIndex(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_remote_newIndex_smile(node, index, type);
+
+        runner.ensureGreen();
+        test_index_to_mock_remote(node, index, type);
+
+        runner.ensureGreen();
+        test_logsatsh(node, logstashIndices, logstashType);
+
+        runner.ensureGreen();
+        test_stats(node);
+
+        runner.ensureGreen();
+        test_verify(node, index, type);
     }
     
-    private void test_logsatsh(Node node){
-        
+    private void test_logsatsh(Node node, String[] logstashIndices,
+            String logstashType) throws Exception {
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/logstash-*/_reindex/v2-logstash-*")
+                .param("wait_for_completion", "true")
+                .param("max_concurrent", "3").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        for (String logstashIndex : logstashIndices) {
+            String newIndex = "v2-" + logstashIndex;
+            assertTrue(runner.indexExists(logstashIndex));
+            assertTrue(runner.indexExists(newIndex));
+
+            // search 500 documents
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    logstashType, null, null, 0, 10);
+            assertEquals(500, searchResponse.getHits().getTotalHits());
+
+            runner.deleteIndex(newIndex);
+        }
     }
     
 
+    @SuppressWarnings("unchecked")
+    private void test_stats(Node node) throws Exception {
+        String name;
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/logstash-*/_reindex/v3-logstash-*")
+                .param("max_concurrent", "1").param("size", "1").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            name = (String) map.get("name");
+            assertNotNull(name);
+        }
+
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((List<String>) map.get("names")).contains(name));
+        }
+
+        String nodeId;
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/" + name)
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("found")).booleanValue());
+            assertNotNull(map.get("node"));
+            assertNotNull(map.get("status"));
+            nodeId = (String) map.get("node");
+        }
+
+        boolean timed = false;
+        for (int i = 0; i < 10 && !timed; i++) {
+            try (CurlResponse curlResponse = Curl.get(node,
+                    "/_reindex/" + name).execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                Map<String, Object> status = (Map<String, Object>) map
+                        .get("status");
+                Map<String, Object> taskStatus = ((List<Map<String, Object>>) status
+                        .get("tasks")).get(0);
+                Map<String, Object> timings = (Map<String, Object>) taskStatus
+                        .get("timings");
+                long batches = ((Number) timings.get("batches")).longValue();
+                if (batches > 0) {
+                    assertEquals(batches,
+                            ((Number) timings.get("slow_batches")).longValue());
+                    Map<String, Object> total = (Map<String, Object>) timings
+                            .get("total");
+                    assertTrue(((Number) total.get("max_millis"))
+                            .doubleValue() > 0);
+                    assertNotNull(timings.get("fetch"));
+                    assertNotNull(timings.get("execute"));
+                    timed = true;
+                } else {
+                    Thread.sleep(200);
+                }
+            }
+        }
+        assertTrue(timed);
+
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/_stats")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            Map<String, Object> total = (Map<String, Object>) map
+                    .get("total");
+            assertEquals(1, ((Number) total.get("tasks")).intValue());
+            assertNotNull(total.get("docs_per_second"));
+            assertNotNull(total.get("bulks_in_flight"));
+            assertNotNull(total.get("buffered_bytes"));
+            assertNotNull(total.get("scroll_contexts"));
+            Map<String, Object> nodes = (Map<String, Object>) map
+                    .get("nodes");
+            assertTrue(nodes.containsKey(nodeId));
+        }
+
+        try (CurlResponse curlResponse = Curl.delete(node, "/_reindex/" + name)
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertEquals(nodeId, map.get("node"));
+        }
+
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/" + name)
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertFalse(((Boolean) map.get("found")).booleanValue());
+        }
+
+        for (int i = 0; i < 10; i++) {
+            try (CurlResponse curlResponse = Curl.get(node,
+                    "/_reindex/_stats").execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                Map<String, Object> total = (Map<String, Object>) map
+                        .get("total");
+                if (((Number) total.get("bulks_in_flight")).intValue() == 0
+                        && ((Number) total.get("scroll_contexts")).intValue() == 0) {
+                    break;
+                }
+            }
+            Thread.sleep(500);
+        }
+        try (CurlResponse curlResponse = Curl.get(node, "/_reindex/_stats")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            Map<String, Object> total = (Map<String, Object>) map
+                    .get("total");
+            assertEquals(0, ((Number) total.get("tasks")).intValue());
+            assertEquals(0, ((Number) total.get("scroll_contexts")).intValue());
+        }
+
+        runner.deleteIndex("v3-logstash-*");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_verify(Node node, String index, String type)
+            throws Exception {
+        String newIndex = "dataset2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+
+        runner.refresh();
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex + "/_verify")
+                .param("canonical", "true").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertTrue(((Boolean) map.get("matched")).booleanValue());
+            assertEquals(1000, ((Number) map.get("source_docs")).intValue());
+            assertEquals(1000, ((Number) map.get("target_docs")).intValue());
+        }
+
+        // change 4 documents in the new index
+        runner.client().prepareIndex(newIndex, type, "1")
+                .setSource("{\"msg\":\"updated\", \"id\":\"1\"}").execute()
+                .actionGet();
+        runner.delete(newIndex, type, "2");
+        // a number in place of a string
+        runner.client().prepareIndex(newIndex, type, "3")
+                .setSource("{\"msg\":\"test 3\", \"id\":3}").execute()
+                .actionGet();
+        // fields merged into a string
+        runner.client().prepareIndex(newIndex, type, "4")
+                .setSource("{\"id\":\"4, msg=test 4\"}").execute()
+                .actionGet();
+        // only the order of fields is changed
+        runner.client().prepareIndex(newIndex, type, "5")
+                .setSource("{\"id\":\"5\", \"msg\":\"test 5\"}").execute()
+                .actionGet();
+        runner.refresh();
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex + "/_verify")
+                .param("canonical", "true").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertFalse(((Boolean) map.get("matched")).booleanValue());
+            assertEquals(4, ((Number) map.get("mismatched_buckets")).intValue());
+            assertFalse(((Boolean) map.get("truncated")).booleanValue());
+            List<String> differentIds = (List<String>) map.get("different_ids");
+            assertEquals(3, differentIds.size());
+            assertTrue(differentIds.contains(type + "#1"));
+            assertTrue(differentIds.contains(type + "#3"));
+            assertTrue(differentIds.contains(type + "#4"));
+            assertEquals("[" + type + "#2]",
+                    ((List<String>) map.get("missing_ids")).toString());
+            assertTrue(((List<String>) map.get("extra_ids")).isEmpty());
+        }
+
+        // buckets to be compared are limited
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex + "/_verify")
+                .param("canonical", "true").param("max_compare_docs", "1")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertFalse(((Boolean) map.get("matched")).booleanValue());
+            assertEquals(4, ((Number) map.get("mismatched_buckets")).intValue());
+            assertTrue(((Boolean) map.get("truncated")).booleanValue());
+            assertTrue(((Number) map.get("compared_buckets")).intValue() < 4);
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
     private void test_index_type_to_newIndex_newType(Node node, String index,
             String type) throws Exception {
         String newIndex = "dataset2";
@@ -215,18 +491,15 @@ public class ReindexingPluginTest extends TestCase {
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_type_to_remote_newIndex_newType(Node node,
-            String index, String type) throws Exception {
+    private void test_index_to_newIndex_scroll(Node node, String index,
+            String type) throws Exception {
         String newIndex = "dataset2";
-        String newType = "item2";
+        String newType = type;
 
         try (CurlResponse curlResponse = Curl
-                .post(node,
-                        "/" + index + "/" + type + "/_reindex/" + newIndex
-                                + "/" + newType)
-                .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true").param("size", "100")
+                .param("scroll", "10m").param("scroll_margin", "1s")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
@@ -235,6 +508,164 @@ public class ReindexingPluginTest extends TestCase {
 
         runner.flush();
 
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        // scroll contexts are cleared without waiting for the keep-alive
+        long openContexts = -1;
+        for (int i = 0; i < 10 && openContexts != 0; i++) {
+            Thread.sleep(500);
+            openContexts = 0;
+            for (NodeStats nodeStats : runner.client().admin().cluster()
+                    .prepareNodesStats().setIndices(true).execute()
+                    .actionGet().getNodes()) {
+                openContexts += nodeStats.getIndices().getSearch()
+                        .getOpenContexts();
+            }
+        }
+        assertEquals(0, openContexts);
+
+        runner.deleteIndex(newIndex);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_dryRun(Node node, String index,
+            String type, String url) throws Exception {
+        String newIndex = "dataset2";
+
+        CurlRequest request = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("dry_run", "true").param("sample_size", "20")
+                .param("estimate_sizes", "100,1000")
+                .param("estimate_partitions", "1,2");
+        if (url != null) {
+            request.param("url", url);
+        }
+        try (CurlResponse curlResponse = request.execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertTrue(((Boolean) map.get("dry_run")).booleanValue());
+            assertEquals(1000, ((Number) map.get("total_docs")).intValue());
+            int sampledDocs = ((Number) map.get("sampled_docs")).intValue();
+            assertTrue(sampledDocs > 0);
+            assertTrue(sampledDocs <= 20 * ((Number) map.get("shards"))
+                    .intValue());
+            assertTrue(((Number) map.get("total_bytes")).longValue() > 0);
+            List<Map<String, Object>> estimates = (List<Map<String, Object>>) map
+                    .get("estimates");
+            assertEquals(4, estimates.size());
+            assertEquals(100, ((Number) estimates.get(0).get("size")).intValue());
+            assertEquals(2,
+                    ((Number) estimates.get(1).get("partitions")).intValue());
+            for (Map<String, Object> estimate : estimates) {
+                assertTrue(((Number) estimate.get("docs_per_second"))
+                        .longValue() > 0);
+            }
+        }
+
+        // nothing is written to the target index
+        assertFalse(runner.indexExists(newIndex));
+
+        // the temporary index is deleted
+        boolean deleted = false;
+        for (int i = 0; i < 10 && !deleted; i++) {
+            deleted = true;
+            for (String name : runner.client().admin().cluster().prepareState()
+                    .execute().actionGet().getState().metaData()
+                    .getConcreteAllIndices()) {
+                if (name.startsWith(".reindex-dry-run-")) {
+                    deleted = false;
+                }
+            }
+            if (!deleted) {
+                Thread.sleep(500);
+            }
+        }
+        assertTrue(deleted);
+    }
+
+    private void test_index_to_mock_remote(Node node, String index,
+            String type) throws Exception {
+        String newIndex = "dataset2";
+
+        // slow network
+        try (MockBulkServer server = new MockBulkServer()) {
+            server.latency(1, 20).bandwidth(2 * 1024 * 1024);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("size", "100").param("url", server.getUrl())
+                    .execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+            assertEquals(1000, server.getItems());
+            assertTrue(server.getRequests() > 1);
+            assertTrue(server.getReceivedBytes() > 0);
+        }
+
+        // smile
+        try (MockBulkServer server = new MockBulkServer()) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl())
+                    .param("remote_format", "smile").execute()) {
+                assertEquals(200, curlResponse.getHttpStatusCode());
+            }
+            assertEquals(1000, server.getItems());
+        }
+
+        // 429 responses
+        try (MockBulkServer server = new MockBulkServer()) {
+            server.errorRate(1.0, 429);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl()).execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+            assertTrue(server.getFailedRequests() > 0);
+            assertEquals(0, server.getItems());
+        }
+
+        // rejected items
+        try (MockBulkServer server = new MockBulkServer()) {
+            server.rejectionRate(0.5);
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true")
+                    .param("url", server.getUrl()).execute()) {
+                assertEquals(500, curlResponse.getHttpStatusCode());
+            }
+            assertTrue(server.getRejectedItems() > 0);
+        }
+
+        assertFalse(runner.indexExists(newIndex));
+    }
+
+    private void test_index_to_newIndex_bulkGrouping(Node node, String index,
+            String type, String bulkGrouping) throws Exception {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        // create an index to route documents to its shards
+        runner.createIndex(newIndex, null);
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("bulk_grouping", bulkGrouping).execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
         assertTrue(runner.indexExists(index));
         assertTrue(runner.indexExists(newIndex));
 
@@ -248,17 +679,20 @@ public class ReindexingPluginTest extends TestCase {
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_type_to_remote_newIndex(Node node, String index,
-            String type) throws Exception {
+    private void test_index_to_newIndex_pipeline(Node node, String index,
+            String type, String url) throws Exception {
         String newIndex = "dataset2";
         String newType = type;
 
-        try (CurlResponse curlResponse = Curl
-                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
+        CurlRequest curlRequest = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
                 .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
-                .execute()) {
+                .param("pipeline", "true").param("pipeline_workers", "3")
+                .param("size", "10");
+        if (url != null) {
+            curlRequest.param("url", url);
+        }
+        try (CurlResponse curlResponse = curlRequest.execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
             assertNull(map.get("name"));
@@ -279,19 +713,100 @@ public class ReindexingPluginTest extends TestCase {
         runner.deleteIndex(newIndex);
     }
 
-    private void test_index_to_remote_newIndex(Node node, String index,
-            String type) throws Exception {
+    @SuppressWarnings("unchecked")
+    private void test_index_to_newIndex_loadProtection(Node node,
+            String index, String type) throws Exception {
         String newIndex = "dataset2";
         String newType = type;
 
+        // a delay has to be shorter than the longest keep-alive of a scroll
         try (CurlResponse curlResponse = Curl
                 .post(node, "/" + index + "/_reindex/" + newIndex)
-                .param("wait_for_completion", "true")
-                .param("url",
-                        "http://localhost:" + node.settings().get("http.port"))
+                .param("load_protection", "true")
+                .param("load_max_delay", "10m").param("max_scroll", "5m")
+                .execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+        assertFalse(runner.indexExists(newIndex));
+
+        // any search queue is regarded as stress
+        String name;
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("load_protection", "true")
+                .param("load_max_search_queue", "-1")
+                .param("load_check_interval", "100ms")
+                .param("load_min_delay", "20ms")
+                .param("load_max_delay", "100ms").param("size", "20")
                 .execute()) {
             Map<String, Object> map = curlResponse.getContentAsMap();
             assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            name = (String) map.get("name");
+            assertNotNull(name);
+        }
+
+        boolean delayed = false;
+        for (int i = 0; i < 100; i++) {
+            try (CurlResponse curlResponse = Curl.get(node,
+                    "/_reindex/" + name).execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                if (!((Boolean) map.get("found")).booleanValue()) {
+                    break;
+                }
+                Map<String, Object> status = (Map<String, Object>) map
+                        .get("status");
+                Map<String, Object> loadProtection = (Map<String, Object>) status
+                        .get("load_protection");
+                if (((Boolean) loadProtection.get("stressed")).booleanValue()) {
+                    assertEquals("search_queue", loadProtection.get("reason"));
+                    assertTrue(((Number) loadProtection.get("delay_millis"))
+                            .longValue() > 0);
+                    delayed = true;
+                }
+            }
+            Thread.sleep(100);
+        }
+        assertTrue(delayed);
+
+        for (int i = 0; i < 100; i++) {
+            try (CurlResponse curlResponse = Curl.get(node,
+                    "/_reindex/" + name).execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                if (!((Boolean) map.get("found")).booleanValue()) {
+                    break;
+                }
+            }
+            Thread.sleep(200);
+        }
+
+        runner.refresh();
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_newIndex_bulkSize(Node node, String index,
+            String type, String url) throws Exception {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        // small bulk requests, and all bodies are spilled to files
+        CurlRequest curlRequest = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("max_bulk_size", "1kb").param("spill_threshold", "0");
+        if (url != null) {
+            curlRequest.param("url", url);
+        }
+        try (CurlResponse curlResponse = curlRequest.execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
             assertNull(map.get("name"));
         }
 
@@ -310,6 +825,749 @@ public class ReindexingPluginTest extends TestCase {
         runner.deleteIndex(newIndex);
     }
 
+    private void test_index_type_to_remote_newIndex_newType(Node node,
+            String index, String type) throws Exception {
+        String newIndex = "dataset2";
+        String newType = "item2";
+
+        try (CurlResponse curlResponse = Curl
+                .post(node,
+                        "/" + index + "/" + type + "/_reindex/" + newIndex
+                                + "/" + newType)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_type_to_remote_newIndex(Node node, String index,
+            String type) throws Exception {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/" + type + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex(Node node, String index,
+            String type) throws Exception {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    private void test_index_to_remote_newIndex_smile(Node node, String index,
+            String type) throws Exception {
+        String newIndex = "dataset2";
+        String newType = type;
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("remote_format", "smile")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        assertTrue(runner.indexExists(index));
+        assertTrue(runner.indexExists(newIndex));
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    newType, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        // compare a document
+        {
+            final GetResponse source = runner.client()
+                    .prepareGet(index, type, "1").execute().actionGet();
+            final GetResponse target = runner.client()
+                    .prepareGet(newIndex, newType, "1").execute().actionGet();
+            assertEquals(source.getSourceAsMap(), target.getSourceAsMap());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    public void test_partition() throws Exception {
+
+        final String index = "sample";
+        final String type = "data";
+
+        // create an index
+        runner.createIndex(index, null);
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 1000 documents
+        for (int i = 1; i <= 1000; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"test " + i + "\", \"num\":"
+                            + i + "}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        // create 10 documents without num
+        for (int i = 1001; i <= 1010; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"test " + i + "\"}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+        String newIndex = "sample2";
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("partition_field", "num").param("partitions", "4")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        // search 1010 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    type, null, null, 0, 10);
+            assertEquals(1010, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("partition_field", "num").param("partitions", "3")
+                .body("{\"query\":{\"range\":{\"num\":{\"gt\":500}}}}")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertNull(map.get("name"));
+        }
+
+        runner.flush();
+
+        // search 500 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    type, null, null, 0, 10);
+            assertEquals(500, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+    }
+
+    public void test_dump() throws Exception {
+
+        final String index = "sample";
+        final String type = "data";
+
+        // create an index
+        runner.createIndex(index, null);
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 1000 documents, and every 100th is pretty-printed
+        for (int i = 1; i <= 1000; i++) {
+            final String source = i % 100 == 0 ? "{\n  \"msg\" : \"test " + i
+                    + "\",\n  \"num\" : " + i
+                    + ",\n  \"tags\" : [\n    \"a\",\n    \"b\"\n  ]\n}"
+                    : "{\"msg\":\"test " + i + "\", \"num\":" + i + "}";
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), source);
+            assertTrue(indexResponse1.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+        String newIndex = "sample2";
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/_export")
+                .param("wait_for_completion", "true")
+                .param("path", "sample").param("segment_size", "300")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+
+        File dir = new File(dumpDir, "sample");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(dir, "sample-0000" + i + ".ndjson.gz").exists());
+        }
+        assertFalse(new File(dir, "sample-00004.ndjson.gz").exists());
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/_reindex/_import/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("path", "sample").param("readers", "3").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+
+        runner.flush();
+
+        // search 1000 documents
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    type, null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+        for (String id : new String[] { "10", "100", "1000" }) {
+            final GetResponse source = runner.client()
+                    .prepareGet(index, type, id).execute().actionGet();
+            final GetResponse target = runner.client()
+                    .prepareGet(newIndex, type, id).execute().actionGet();
+            assertEquals(source.getSourceAsMap(), target.getSourceAsMap());
+        }
+
+        runner.deleteIndex(newIndex);
+
+        // all files are skipped
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/_reindex/_import/" + newIndex)
+                .param("wait_for_completion", "true")
+                .param("path", "sample").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        assertFalse(runner.indexExists(newIndex));
+
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/_reindex/_import/" + newIndex + "/item")
+                .param("wait_for_completion", "true")
+                .param("path", "sample").param("resume", "false").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+
+        runner.flush();
+
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    "item", null, null, 0, 10);
+            assertEquals(1000, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+
+        // a path should be under the dump directory
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/_export")
+                .param("wait_for_completion", "true")
+                .param("path", "../sample").execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+    }
+
+    public void test_metadata() throws Exception {
+
+        final String index = "routed";
+        final String type = "doc";
+        final String plainType = "plain";
+        final String mapping = "{\"_routing\":{\"required\":true},"
+                + "\"_timestamp\":{\"enabled\":true,\"store\":true},"
+                + "\"_ttl\":{\"enabled\":true}}";
+
+        // create an index with routing, timestamp and ttl
+        runner.createIndex(index, null);
+        runner.createMapping(index, type, mapping);
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 50 routed and 50 plain documents, created an hour ago
+        final long timestamp = System.currentTimeMillis() - 60 * 60 * 1000L;
+        for (int i = 1; i <= 50; i++) {
+            final IndexResponse indexResponse1 = runner.client()
+                    .prepareIndex(index, type, String.valueOf(i))
+                    .setSource("{\"num\":" + i + "}")
+                    .setRouting("r" + (i % 3))
+                    .setTimestamp(String.valueOf(timestamp))
+                    .setTTL(24 * 60 * 60 * 1000L).execute().actionGet();
+            assertTrue(indexResponse1.isCreated());
+            final IndexResponse indexResponse2 = runner.insert(index,
+                    plainType, String.valueOf(i), "{\"num\":" + i + "}");
+            assertTrue(indexResponse2.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+
+        for (String newIndex : new String[] { "routed2", "routed3" }) {
+            runner.createIndex(newIndex, null);
+            runner.createMapping(newIndex, type, mapping);
+            runner.ensureGreen();
+
+            CurlRequest request = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true");
+            if ("routed3".equals(newIndex)) {
+                request.param("url",
+                        "http://localhost:" + node.settings().get("http.port"));
+            }
+            try (CurlResponse curlResponse = request.execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            }
+            runner.refresh();
+
+            {
+                final SearchResponse searchResponse = runner.client()
+                        .prepareSearch(newIndex).execute().actionGet();
+                assertEquals(100, searchResponse.getHits().getTotalHits());
+            }
+            {
+                final GetResponse getResponse = runner.client()
+                        .prepareGet(newIndex, type, "10").setRouting("r1")
+                        .setFields("_routing", "_timestamp", "_ttl")
+                        .execute().actionGet();
+                assertTrue(getResponse.isExists());
+                assertEquals("r1", getResponse.getField("_routing")
+                        .getValue());
+                assertEquals(timestamp, ((Number) getResponse
+                        .getField("_timestamp").getValue()).longValue());
+                // expires a day after the timestamp
+                final long ttl = ((Number) getResponse.getField("_ttl")
+                        .getValue()).longValue();
+                assertTrue(ttl > 22 * 60 * 60 * 1000L
+                        && ttl <= 23 * 60 * 60 * 1000L);
+            }
+        }
+    }
+
+    public void test_compressedSource() throws Exception {
+
+        final String index = "compressed";
+        final String type = "doc";
+
+        // create an index which compresses _source
+        runner.createIndex(index, null);
+        runner.createMapping(index, type, "{\"_source\":{\"compress\":true}}");
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 100 documents
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            buf.append("compressed text ");
+        }
+        final String text = buf.toString();
+        for (int i = 1; i <= 100; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"" + text + i
+                            + "\", \"num\":" + i + "}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+
+        // to an index with uncompressed and compressed _source
+        runner.createIndex("compressed3", null);
+        runner.createMapping("compressed3", type,
+                "{\"_source\":{\"compress\":true}}");
+        for (String newIndex : new String[] { "compressed2", "compressed3" }) {
+            runner.ensureGreen();
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + index + "/_reindex/" + newIndex)
+                    .param("wait_for_completion", "true").execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            }
+            runner.refresh();
+
+            {
+                final SearchResponse searchResponse = runner.search(newIndex,
+                        type, QueryBuilders.termQuery("num", 10), null, 0, 10);
+                assertEquals(1, searchResponse.getHits().getTotalHits());
+                assertEquals(text + 10, searchResponse.getHits().getAt(0)
+                        .getSource().get("msg"));
+            }
+            {
+                final SearchResponse searchResponse = runner.search(newIndex,
+                        type, null, null, 0, 10);
+                assertEquals(100, searchResponse.getHits().getTotalHits());
+            }
+        }
+    }
+
+    public void test_split() throws Exception {
+
+        final String index = "events";
+        final String type = "event";
+
+        // create an index, where @timestamp can have a value not a date
+        runner.createIndex(index, null);
+        runner.createMapping(index, type,
+                "{\"properties\":{\"@timestamp\":{\"type\":\"string\"}}}");
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 30 documents in 3 months, 5 documents without a date and
+        // 1 document with an invalid date
+        for (int i = 1; i <= 30; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"test " + i
+                            + "\", \"@timestamp\":\"2015-0" + (i % 3 + 1)
+                            + "-15T10:00:00Z\", \"tenant\":\"T" + (i % 2)
+                            + "\"}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        for (int i = 31; i <= 35; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"test " + i + "\"}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    "36", "{\"msg\":\"test 36\", \"@timestamp\":\"unknown\"}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+
+        runner.ensureGreen();
+        // a field without a value fails
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/"
+                        + "events-%7B%40timestamp%3Ayyyy.MM%7D")
+                .param("wait_for_completion", "true").execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/"
+                        + "events-%7B%40timestamp%3Ayyyy.MM%7D")
+                .param("wait_for_completion", "true")
+                .param("default_toindex", "events-unknown").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        for (int month = 1; month <= 3; month++) {
+            final SearchResponse searchResponse = runner.search(
+                    "events-2015.0" + month, type, null, null, 0, 10);
+            assertEquals(10, searchResponse.getHits().getTotalHits());
+        }
+        {
+            final SearchResponse searchResponse = runner.search(
+                    "events-unknown", type, null, null, 0, 10);
+            assertEquals(6, searchResponse.getHits().getTotalHits());
+        }
+
+        // send to a remote cluster by tenant
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/"
+                        + "tenant-%7Btenant%7D")
+                .param("wait_for_completion", "true")
+                .param("default_toindex", "tenant-none")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        for (String tenant : new String[] { "t0", "t1" }) {
+            final SearchResponse searchResponse = runner.search("tenant-"
+                    + tenant, type, null, null, 0, 10);
+            assertEquals(15, searchResponse.getHits().getTotalHits());
+        }
+        {
+            final SearchResponse searchResponse = runner.search(
+                    "tenant-none", type, null, null, 0, 10);
+            assertEquals(6, searchResponse.getHits().getTotalHits());
+        }
+
+        // values which make invalid index names
+        final String labelIndex = "labels";
+        runner.insert(labelIndex, type, "1", "{\"label\":\"ok\"}");
+        runner.insert(labelIndex, type, "2", "{\"label\":\"a,b\"}");
+        runner.insert(labelIndex, type, "3", "{\"label\":\"_hidden\"}");
+        runner.insert(labelIndex, type, "4", "{\"label\":\"x y*\"}");
+        runner.refresh();
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + labelIndex + "/_reindex/"
+                        + "%7Blabel%7D-log")
+                .param("wait_for_completion", "true").execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + labelIndex + "/_reindex/"
+                        + "%7Blabel%7D-log")
+                .param("wait_for_completion", "true")
+                .param("default_toindex", "label-*").execute()) {
+            assertEquals(500, curlResponse.getHttpStatusCode());
+        }
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + labelIndex + "/_reindex/"
+                        + "%7Blabel%7D-log")
+                .param("wait_for_completion", "true")
+                .param("default_toindex", "label-invalid").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        {
+            final SearchResponse searchResponse = runner.search("ok-log",
+                    type, null, null, 0, 10);
+            assertEquals(1, searchResponse.getHits().getTotalHits());
+        }
+        {
+            final SearchResponse searchResponse = runner.search(
+                    "label-invalid", type, null, null, 0, 10);
+            assertEquals(3, searchResponse.getHits().getTotalHits());
+        }
+        assertFalse(runner.indexExists("a"));
+        assertFalse(runner.indexExists("_hidden-log"));
+    }
+
+    public void test_sync() throws Exception {
+
+        final String index = "sample";
+        final String type = "data";
+        final String newIndex = "sample2";
+
+        // create an index
+        runner.createIndex(index, null);
+
+        if (!runner.indexExists(index)) {
+            fail();
+        }
+
+        // create 100 documents
+        for (int i = 1; i <= 100; i++) {
+            final IndexResponse indexResponse1 = runner.insert(index, type,
+                    String.valueOf(i), "{\"msg\":\"test " + i + "\", \"num\":"
+                            + i + "}");
+            assertTrue(indexResponse1.isCreated());
+        }
+        runner.refresh();
+
+        Node node = runner.node();
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true").param("sync", "true")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    type, null, null, 0, 10);
+            assertEquals(100, searchResponse.getHits().getTotalHits());
+            assertNotNull(searchResponse.getHits().getAt(0).getSource()
+                    .get("reindex_hash"));
+        }
+
+        // the hash field is stored so that a lookup does not load _source
+        {
+            final Map<String, Object> mapping = runner.client().admin()
+                    .indices().prepareGetMappings(newIndex).execute()
+                    .actionGet().getMappings().get(newIndex).get(type)
+                    .sourceAsMap();
+            assertEquals(Boolean.TRUE, XContentMapValues.extractValue(
+                    "properties.reindex_hash.store", mapping));
+            final GetResponse getResponse = runner.client()
+                    .prepareGet(newIndex, type, "1").setFields("reindex_hash")
+                    .setFetchSource(false).execute().actionGet();
+            assertNotNull(getResponse.getField("reindex_hash"));
+        }
+
+        // the hash field is ignored by verification
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex + "/_verify")
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            assertTrue(((Boolean) map.get("matched")).booleanValue());
+            assertEquals(100, ((Number) map.get("target_docs")).intValue());
+        }
+
+        // update 1 document and add 1 document to the new index
+        runner.client().prepareIndex(index, type, "1")
+                .setSource("{\"msg\":\"updated\", \"num\":1}").execute()
+                .actionGet();
+        runner.insert(newIndex, type, "101", "{\"msg\":\"test 101\"}");
+        runner.refresh();
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true").param("sync", "true")
+                .param("url",
+                        "http://localhost:" + node.settings().get("http.port"))
+                .execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        assertEquals(2, runner.client().prepareGet(newIndex, type, "1")
+                .execute().actionGet().getVersion());
+        assertEquals("updated", runner.client().prepareGet(newIndex, type, "1")
+                .execute().actionGet().getSource().get("msg"));
+        assertEquals(1, runner.client().prepareGet(newIndex, type, "2")
+                .execute().actionGet().getVersion());
+        assertTrue(runner.client().prepareGet(newIndex, type, "101")
+                .execute().actionGet().isExists());
+
+        runner.ensureGreen();
+        try (CurlResponse curlResponse = Curl
+                .post(node, "/" + index + "/_reindex/" + newIndex)
+                .param("wait_for_completion", "true").param("sync", "true")
+                .param("sync_delete", "true").execute()) {
+            Map<String, Object> map = curlResponse.getContentAsMap();
+            assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+        }
+        runner.refresh();
+
+        assertEquals(2, runner.client().prepareGet(newIndex, type, "1")
+                .execute().actionGet().getVersion());
+        assertFalse(runner.client().prepareGet(newIndex, type, "101")
+                .execute().actionGet().isExists());
+        {
+            final SearchResponse searchResponse = runner.search(newIndex,
+                    type, null, null, 0, 10);
+            assertEquals(100, searchResponse.getHits().getTotalHits());
+        }
+
+        runner.deleteIndex(newIndex);
+
+        // the same ids in 2 source types are merged into 1 target type
+        final String multiIndex = "multi";
+        final String mergedIndex = "merged";
+        for (int i = 1; i <= 50; i++) {
+            runner.insert(multiIndex, "a", String.valueOf(i),
+                    "{\"msg\":\"a " + i + "\"}");
+            runner.insert(multiIndex, "b", String.valueOf(i),
+                    "{\"msg\":\"b " + i + "\"}");
+        }
+        runner.refresh();
+
+        runner.ensureGreen();
+        for (int i = 0; i < 2; i++) {
+            try (CurlResponse curlResponse = Curl
+                    .post(node, "/" + multiIndex + "/_reindex/" + mergedIndex)
+                    .param("wait_for_completion", "true")
+                    .param("sync", "true").param("sync_delete", "true")
+                    .param("totype", "data").param("size", "10").execute()) {
+                Map<String, Object> map = curlResponse.getContentAsMap();
+                assertTrue(((Boolean) map.get("acknowledged")).booleanValue());
+            }
+            runner.refresh();
+
+            final SearchResponse searchResponse = runner.search(mergedIndex,
+                    "data", null, null, 0, 10);
+            assertEquals(50, searchResponse.getHits().getTotalHits());
+        }
+    }
+
     public void test_parentChild() throws Exception {
 
         final String index = "company";